@@ -0,0 +1,59 @@
+package hudson.plugins.virtualbox;
+
+import java.util.Random;
+import java.util.logging.Logger;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * A {@link VirtualBoxCloud} backed by {@link InMemoryVirtualBoxControl}s, shared by the threads of a benchmark.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkHost {
+
+  @Param({"10", "100", "1000"})
+  public int machines;
+
+  /**
+   * Latency of each round trip to the host, in microseconds.
+   */
+  @Param({"0"})
+  public long latencyMicros;
+
+  @Param({"1"})
+  public int connectionPoolSize;
+
+  public VirtualBoxCloud host;
+
+  public final VirtualBoxLogger log = new VirtualBoxSystemLog(Logger.getLogger(BenchmarkHost.class.getName()), "");
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    host = new VirtualBoxCloud("benchmark", "http://benchmark:18083", "user", "password", connectionPoolSize,
+        VirtualBoxCloud.DEFAULT_INVENTORY_TTL);
+    VirtualBoxUtils.connectThrough(host, new InMemoryVirtualBoxControl.Connector(machines, latencyMicros));
+    // fills the inventory, so that lookups never go to the host
+    host.refreshVirtualMachinesList();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    VirtualBoxUtils.disconnectAll();
+  }
+
+  /**
+   * Picks machines at random, one generator per thread.
+   */
+  @State(Scope.Thread)
+  public static class RandomMachine {
+    private final Random random = new Random();
+
+    int next(BenchmarkHost host) {
+      return random.nextInt(host.machines);
+    }
+  }
+}
@@ -0,0 +1,177 @@
+package hudson.plugins.virtualbox;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * {@link VirtualBoxControl} keeping its machines in memory. Each round trip to the host costs a fixed latency,
+ * and operations changing a machine take its lock, like the 4.x controls do.
+ */
+public class InMemoryVirtualBoxControl implements VirtualBoxControl {
+
+  private final long latencyNanos;
+  private final VirtualBoxMachineLocks machineLocks;
+  private final ConcurrentMap<String, String> states = new ConcurrentHashMap<String, String>();
+
+  /**
+   * @param hostUrl       host, whose connections share the machine locks
+   * @param machines      number of machines, named vm0 to vm(machines - 1)
+   * @param latencyMicros latency of each round trip to the host
+   */
+  public InMemoryVirtualBoxControl(String hostUrl, int machines, long latencyMicros) {
+    this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+    machineLocks = VirtualBoxMachineLocks.forHost(hostUrl);
+    for (int i = 0; i < machines; i++) {
+      states.put(machineName(i), "PoweredOff");
+    }
+  }
+
+  public static String machineName(int index) {
+    return "vm" + index;
+  }
+
+  /**
+   * @return MAC Address of the machine with specified index, without separators
+   */
+  public static String macAddress(int index) {
+    return String.format(Locale.ENGLISH, "080027%06X", index);
+  }
+
+  private void roundTrip() {
+    if (latencyNanos > 0) {
+      LockSupport.parkNanos(latencyNanos);
+    }
+  }
+
+  private long setState(VirtualBoxMachine machine, String state) {
+    Lock lock = machineLocks.lock(machine);
+    try {
+      // findMachine, lockMachine, launchVMProcess or powerDown, waitForCompletion, unlockMachine
+      for (int i = 0; i < 5; i++) {
+        roundTrip();
+      }
+      return null != states.replace(machine.getName(), state) ? 0 : -1;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  public long startVm(VirtualBoxMachine machine, String virtualMachineType, VirtualBoxLogger log) {
+    return setState(machine, "Running");
+  }
+
+  public long startVm(VirtualBoxMachine machine, String virtualMachineType, String snapshotName, VirtualBoxLogger log) {
+    return setState(machine, "Running");
+  }
+
+  public long stopVm(VirtualBoxMachine machine, String virtualMachineStopMode, VirtualBoxLogger log) {
+    return setState(machine, "pause".equals(virtualMachineStopMode) ? "Saved" : "PoweredOff");
+  }
+
+  public Map<VirtualBoxMachine, Long> startVms(Collection<VirtualBoxMachine> machines, String virtualMachineType,
+      VirtualBoxLogger log) {
+    Map<VirtualBoxMachine, Long> results = new LinkedHashMap<VirtualBoxMachine, Long>();
+    for (VirtualBoxMachine machine : machines) {
+      results.put(machine, setState(machine, "Running"));
+    }
+    return results;
+  }
+
+  public Map<VirtualBoxMachine, Long> stopVms(Collection<VirtualBoxMachine> machines, String virtualMachineStopMode,
+      VirtualBoxLogger log) {
+    Map<VirtualBoxMachine, Long> results = new LinkedHashMap<VirtualBoxMachine, Long>();
+    for (VirtualBoxMachine machine : machines) {
+      results.put(machine, stopVm(machine, virtualMachineStopMode, log));
+    }
+    return results;
+  }
+
+  public long restoreSnapshot(VirtualBoxMachine machine, String snapshotName, VirtualBoxLogger log) {
+    return setState(machine, "PoweredOff");
+  }
+
+  public long takeSnapshot(VirtualBoxMachine machine, String snapshotName, String description, VirtualBoxLogger log) {
+    return setState(machine, states.get(machine.getName()));
+  }
+
+  public List<VirtualBoxMachine> getMachines(VirtualBoxCloud host, VirtualBoxLogger log) {
+    roundTrip();
+    List<VirtualBoxMachine> result = new ArrayList<VirtualBoxMachine>(states.size());
+    for (int i = 0; i < states.size(); i++) {
+      String name = machineName(i);
+      result.add(new VirtualBoxMachine(host, name, "uuid-" + name, states.get(name), "Linux26_64", macAddress(i)));
+    }
+    return result;
+  }
+
+  public VirtualBoxHostLoad getHostLoad(VirtualBoxLogger log) {
+    roundTrip();
+    int running = 0;
+    for (String state : states.values()) {
+      if ("Running".equals(state)) {
+        running++;
+      }
+    }
+    return new VirtualBoxHostLoad(65536, 32768, 16, 0.5, running);
+  }
+
+  public String getMacAddress(VirtualBoxMachine machine, VirtualBoxLogger log) {
+    roundTrip();
+    return macAddress(Integer.parseInt(machine.getName().substring(2)));
+  }
+
+  public String getGuestProperty(VirtualBoxMachine machine, String property, VirtualBoxLogger log) {
+    roundTrip();
+    return "Running".equals(states.get(machine.getName())) ? "10.0.2.15" : "";
+  }
+
+  public long cloneVm(VirtualBoxMachine machine, String snapshotName, String cloneName, VirtualBoxLogger log) {
+    roundTrip();
+    return null == states.putIfAbsent(cloneName, "PoweredOff") ? 0 : -1;
+  }
+
+  public long unregisterVm(VirtualBoxMachine machine, VirtualBoxLogger log) {
+    roundTrip();
+    states.remove(machine.getName());
+    return 0;
+  }
+
+  public long deleteVm(VirtualBoxMachine machine, VirtualBoxLogger log) {
+    return unregisterVm(machine, log);
+  }
+
+  public void disconnect() {
+  }
+
+  public boolean isConnected() {
+    roundTrip();
+    return true;
+  }
+
+  /**
+   * Connects every host to a new in-memory control with the same machines.
+   */
+  public static final class Connector extends VirtualBoxUtils.Connector {
+    private final int machines;
+    private final long latencyMicros;
+
+    public Connector(int machines, long latencyMicros) {
+      this.machines = machines;
+      this.latencyMicros = latencyMicros;
+    }
+
+    @Override
+    VirtualBoxControl connect(VirtualBoxCloud host, VirtualBoxLogger log) {
+      return new InMemoryVirtualBoxControl(host.getUrl(), machines, latencyMicros);
+    }
+  }
+}
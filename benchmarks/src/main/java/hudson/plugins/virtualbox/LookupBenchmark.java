@@ -0,0 +1,66 @@
+package hudson.plugins.virtualbox;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Cost of the lookups done on every operation: the connection of a host, a machine by name,
+ * and the agent of a MAC Address as done by {@link VirtualBoxPlugin#doGetSlaveAgent}.
+ * <p>
+ * The agent lookup needs running Hudson nodes, so it is measured up to the name of the node:
+ * {@link VirtualBoxMacAddressIndex} against the scan of the listed machines it replaces.
+ * </p>
+ */
+@Threads(4)
+public class LookupBenchmark {
+
+  @State(Scope.Benchmark)
+  public static class MacAddresses {
+    List<VirtualBoxMachine> machines;
+
+    @Setup
+    public void setUp(BenchmarkHost host) {
+      machines = host.host.getVirtualMachines();
+      // one agent per machine, named after it
+      Map<String, VirtualBoxMachine> machinesByNode = new HashMap<String, VirtualBoxMachine>();
+      for (VirtualBoxMachine machine : machines) {
+        machinesByNode.put(machine.getName(), machine);
+      }
+      VirtualBoxMacAddressIndex.install(VirtualBoxMacAddressIndex.index(machinesByNode));
+    }
+  }
+
+  @Benchmark
+  public VirtualBoxControl getVboxControl(BenchmarkHost host) {
+    return VirtualBoxUtils.getVboxControl(host.host, host.log);
+  }
+
+  @Benchmark
+  public VirtualBoxMachine getVirtualMachine(BenchmarkHost host, BenchmarkHost.RandomMachine machines) {
+    return host.host.getVirtualMachine(InMemoryVirtualBoxControl.machineName(machines.next(host)));
+  }
+
+  @Benchmark
+  public String matchMacAddressIndexed(BenchmarkHost host, MacAddresses macAddresses,
+      BenchmarkHost.RandomMachine machines) {
+    return VirtualBoxMacAddressIndex.getNodeName(InMemoryVirtualBoxControl.macAddress(machines.next(host)));
+  }
+
+  @Benchmark
+  public String matchMacAddressScan(BenchmarkHost host, MacAddresses macAddresses,
+      BenchmarkHost.RandomMachine machines) {
+    String macAddress = InMemoryVirtualBoxControl.macAddress(machines.next(host));
+    for (VirtualBoxMachine machine : macAddresses.machines) {
+      if (macAddress.equalsIgnoreCase(machine.getMacAddress())) {
+        return machine.getName();
+      }
+    }
+    return null;
+  }
+}
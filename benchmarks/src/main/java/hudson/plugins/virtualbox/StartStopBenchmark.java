@@ -0,0 +1,23 @@
+package hudson.plugins.virtualbox;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Threads;
+
+/**
+ * Throughput of concurrent starts and stops through {@link VirtualBoxUtils}, which shows the contention
+ * on the connection pool and on the machine locks. With few machines, threads often hit the same machine.
+ * <p>
+ * Run with a latency, for example {@code -p latencyMicros=1000}, to see round trips overlap,
+ * and with {@code -p connectionPoolSize=4} to compare pool sizes.
+ * </p>
+ */
+@Threads(8)
+public class StartStopBenchmark {
+
+  @Benchmark
+  public long startStop(BenchmarkHost host, BenchmarkHost.RandomMachine machines) {
+    VirtualBoxMachine machine = host.host.getVirtualMachine(InMemoryVirtualBoxControl.machineName(machines.next(host)));
+    return VirtualBoxUtils.startVm(machine, "headless", host.log)
+        + VirtualBoxUtils.stopVm(machine, "powerdown", host.log);
+  }
+}
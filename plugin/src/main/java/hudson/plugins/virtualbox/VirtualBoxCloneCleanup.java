@@ -0,0 +1,48 @@
+package hudson.plugins.virtualbox;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Periodically deletes the linked clones no agent uses anymore, such as the clones of agents removed
+ * while Hudson was down or whose deletion failed.
+ */
+@Extension
+public class VirtualBoxCloneCleanup extends AsyncPeriodicWork {
+
+  private static final Logger LOG = Logger.getLogger(VirtualBoxCloneCleanup.class.getName());
+
+  /**
+   * Cleanup period, set in minutes.
+   */
+  static final long PERIOD = TimeUnit.MINUTES.toMillis(Long.getLong(VirtualBoxCloneCleanup.class.getName() + ".period", 10));
+
+  public VirtualBoxCloneCleanup() {
+    super("VirtualBox linked clones cleanup");
+  }
+
+  @Override
+  public long getRecurrencePeriod() {
+    return PERIOD;
+  }
+
+  @Override
+  protected void execute(TaskListener listener) throws IOException, InterruptedException {
+    VirtualBoxLogger log = new VirtualBoxSystemLog(LOG, "[VirtualBox] ");
+    for (VirtualBoxCloud host : VirtualBoxPlugin.getHosts()) {
+      if (!host.hasLinkedCloneTemplates()) {
+        continue;
+      }
+      try {
+        host.deleteOrphanClones(log);
+      } catch (RuntimeException e) {
+        LOG.log(Level.WARNING, "Unable to delete orphan clones of " + host.getDisplayName(), e);
+      }
+    }
+  }
+}
@@ -2,19 +2,42 @@ package hudson.plugins.virtualbox;
 
 import hudson.Extension;
 import hudson.Util;
+import hudson.model.Computer;
 import hudson.model.Descriptor;
+import hudson.model.Hudson;
 import hudson.model.Label;
+import hudson.model.Node;
 import hudson.slaves.Cloud;
 import hudson.slaves.NodeProvisioner;
 import hudson.util.FormValidation;
+import hudson.util.ListBoxModel;
 import hudson.util.Scrambler;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
 import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
 
 /**
  * {@link Cloud} implementation for VirtualBox.
@@ -25,50 +48,842 @@ public class VirtualBoxCloud extends Cloud {
 
   private static final Logger LOG = Logger.getLogger(VirtualBoxCloud.class.getName());
 
+  public static final int DEFAULT_CONNECTION_POOL_SIZE = 1;
+
+  public static final int DEFAULT_INVENTORY_TTL = 300;
+
+  /**
+   * Seconds after which the last sampled load of this host is too old for placement, three sampling periods by default.
+   */
+  private static final long LOAD_TTL = TimeUnit.SECONDS.toMillis(Long.getLong(VirtualBoxCloud.class.getName() + ".loadTtl",
+      TimeUnit.MILLISECONDS.toSeconds(3 * VirtualBoxMetricsSampler.PERIOD)));
+
+  /**
+   * Time given to NodeProvisioner to add the agent of a launched machine, which is reserved meanwhile.
+   */
+  private static final long ADD_TIMEOUT = TimeUnit.MINUTES.toMillis(5);
+
+  /**
+   * Seconds during which a machine missing from a fresh list is reported missing without listing this host again.
+   */
+  private static final long MISS_TTL = TimeUnit.SECONDS.toMillis(Long.getLong(VirtualBoxCloud.class.getName() + ".missTtl",
+      30));
+
   private final String url;
   private final String username;
   private final String password;
 
+  /**
+   * Maximum number of agents running on this host at the same time, 0 for no limit.
+   */
+  private final int instanceCap;
+
+  private final List<VirtualBoxTemplate> templates;
+
+  /**
+   * Number of connections kept open to this host.
+   */
+  private final int connectionPoolSize;
+
+  /**
+   * Seconds after which the list of virtual machines is refreshed in background.
+   */
+  private final int inventoryTtl;
+
+  /**
+   * Id of the {@link VirtualBoxPlacement} picking the host of the agents provisioned by this cloud.
+   */
+  private final String placement;
+
   /**
    * Lazily computed list of virtual machines from this host.
    */
-  private transient List<VirtualBoxMachine> virtualBoxMachines = null;
+  private transient volatile Inventory inventory;
+
+  /**
+   * Listing in progress, shared by all the callers asking for a refresh meanwhile.
+   */
+  private transient AtomicReference<FutureTask<List<VirtualBoxMachine>>> refreshing =
+      new AtomicReference<FutureTask<List<VirtualBoxMachine>>>();
+
+  /**
+   * Machines found missing from a fresh list, by time of the listing.
+   */
+  private transient ConcurrentMap<String, Long> misses = new ConcurrentHashMap<String, Long>();
+
+  /**
+   * Names of the machines being provisioned, which are not registered as agents yet.
+   */
+  private transient Set<String> provisioning = new HashSet<String>();
+
+  /**
+   * Machines of {@link #provisioning} launched for NodeProvisioner, by launch time, kept reserved until it adds their
+   * agent.
+   */
+  private transient Map<String, Long> launched = new HashMap<String, Long>();
+
+  /**
+   * Last sampled load of this host, null until sampled.
+   */
+  private transient volatile VirtualBoxHostLoad load;
+
+  /**
+   * Recent loads of this host, sampled by {@link VirtualBoxMetricsSampler}.
+   */
+  private transient VirtualBoxHostMetrics metrics = new VirtualBoxHostMetrics();
+
+  /**
+   * End of the warm-up of this host by {@link VirtualBoxWarmUp}, null if it did not run,
+   * and its failure, null if it succeeded.
+   */
+  private transient volatile Date warmedUpAt;
+  private transient volatile String warmUpFailure;
+
+  /**
+   * Results of the last start all or stop all, null if none.
+   */
+  private transient volatile BatchResult lastBatch;
+
+  /**
+   * Start all or stop all running in background, null if none.
+   */
+  private transient volatile String runningBatch;
 
   @DataBoundConstructor
-  public VirtualBoxCloud(String displayName, String url, String username, String password) {
+  public VirtualBoxCloud(String displayName, String url, String username, String password, int instanceCap,
+      List<VirtualBoxTemplate> templates, int connectionPoolSize, int inventoryTtl, String placement) {
     super(displayName);
     this.url = url;
     this.username = username;
     this.password = Scrambler.scramble(Util.fixEmptyAndTrim(password));
+    this.instanceCap = instanceCap;
+    this.templates = null != templates ? new ArrayList<VirtualBoxTemplate>(templates) : new ArrayList<VirtualBoxTemplate>();
+    this.connectionPoolSize = connectionPoolSize;
+    this.inventoryTtl = inventoryTtl;
+    this.placement = Util.fixEmptyAndTrim(placement);
+  }
+
+  public VirtualBoxCloud(String displayName, String url, String username, String password, int instanceCap,
+      List<VirtualBoxTemplate> templates, int connectionPoolSize, int inventoryTtl) {
+    this(displayName, url, username, password, instanceCap, templates, connectionPoolSize, inventoryTtl, null);
+  }
+
+  public VirtualBoxCloud(String displayName, String url, String username, String password, int connectionPoolSize,
+      int inventoryTtl) {
+    this(displayName, url, username, password, 0, null, connectionPoolSize, inventoryTtl);
   }
 
+  public VirtualBoxCloud(String displayName, String url, String username, String password) {
+    this(displayName, url, username, password, DEFAULT_CONNECTION_POOL_SIZE, DEFAULT_INVENTORY_TTL);
+  }
+
+  protected Object readResolve() {
+    refreshing = new AtomicReference<FutureTask<List<VirtualBoxMachine>>>();
+    misses = new ConcurrentHashMap<String, Long>();
+    provisioning = new HashSet<String>();
+    launched = new HashMap<String, Long>();
+    metrics = new VirtualBoxHostMetrics();
+    return this;
+  }
+
+  /**
+   * Starts as many machines of this host as needed for the excess workload, within the caps of its templates.
+   * <p>
+   * NodeProvisioner asks the clouds one after another, each with the workload left by the previous ones.
+   * So each agent is placed by the {@link VirtualBoxPlacement} of this cloud among this host and the hosts asked
+   * after it, and once one of them is preferred, the rest of the workload is left to it.
+   * Machines are started in parallel, NodeProvisioner adds and connects the agent of each planned node.
+   * </p>
+   */
   @Override
   public Collection<NodeProvisioner.PlannedNode> provision(Label label, int excessWorkload) {
-    return Collections.emptyList();
+    List<NodeProvisioner.PlannedNode> result = new ArrayList<NodeProvisioner.PlannedNode>();
+    List<VirtualBoxPlacement.Candidate> candidates = new ArrayList<VirtualBoxPlacement.Candidate>();
+    boolean before = true; // hosts before this one were asked already
+    for (VirtualBoxCloud host : VirtualBoxPlugin.getHosts()) {
+      if (this == host) {
+        before = false;
+      }
+      if (before) {
+        continue;
+      }
+      for (VirtualBoxTemplate template : host.getTemplates()) {
+        if (template.matches(label)) {
+          candidates.add(new VirtualBoxPlacement.Candidate(host, template));
+        }
+      }
+    }
+    VirtualBoxPlacement policy = getPlacementPolicy();
+    while (excessWorkload > 0 && !candidates.isEmpty()) {
+      VirtualBoxPlacement.Candidate candidate = policy.select(candidates);
+      if (null == candidate) {
+        break;
+      }
+      VirtualBoxTemplate template = candidate.getTemplate();
+      if (this != candidate.getHost()) {
+        if (candidate.getHost().hasCapacity(template)) {
+          LOG.log(Level.FINE, "{0} leaves the agents for {1} to {2}",
+              new Object[]{getDisplayName(), label, candidate.getHost().getDisplayName()});
+          break;
+        }
+        candidates.remove(candidate);
+        continue;
+      }
+      String virtualMachineName = reserve(template);
+      if (null == virtualMachineName) {
+        candidates.remove(candidate);
+        continue;
+      }
+      LOG.log(Level.INFO, "Provisioning {0} on {1} for {2}, {3}",
+          new Object[]{virtualMachineName, getDisplayName(), label, candidate.getLoad()});
+      result.add(new NodeProvisioner.PlannedNode(virtualMachineName, launchAsync(template, virtualMachineName),
+          template.getNumExecutors()));
+      excessWorkload -= template.getNumExecutors();
+    }
+    return result;
+  }
+
+  /**
+   * Starts agents for the templates which have fewer idle agents than the size of their warm pool.
+   */
+  void replenishWarmPools() {
+    for (VirtualBoxTemplate template : getTemplates()) {
+      for (int missing = template.getMinIdle() - countWarmAgents(template); missing > 0; missing--) {
+        String virtualMachineName = reserve(template);
+        if (null == virtualMachineName) {
+          break;
+        }
+        LOG.log(Level.INFO, "Starting {0} on {1} for the warm pool of {2}",
+            new Object[]{virtualMachineName, getDisplayName(), template.getLabelString()});
+        addAsync(template, virtualMachineName);
+      }
+    }
+  }
+
+  /**
+   * @return false if removing specified idle agent would shrink the warm pool of its template below its size
+   */
+  boolean canRetire(VirtualBoxSlave slave) {
+    for (VirtualBoxTemplate template : getTemplates()) {
+      if (template.isInstance(slave.getVirtualMachineName())) {
+        return countWarmAgents(template) > template.getMinIdle();
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return number of agents of specified template which are idle, connecting or being provisioned
+   */
+  private int countWarmAgents(VirtualBoxTemplate template) {
+    int count = 0;
+    for (Node node : Hudson.getInstance().getNodes()) {
+      if (node instanceof VirtualBoxSlave && getDisplayName().equals(((VirtualBoxSlave) node).getHostName())
+          && template.isInstance(((VirtualBoxSlave) node).getVirtualMachineName())) {
+        Computer computer = node.toComputer();
+        if (null != computer && (computer.isConnecting() || (computer.isOnline() && computer.isIdle()))) {
+          count++;
+        }
+      }
+    }
+    synchronized (this) {
+      for (String name : provisioning) {
+        if (template.isInstance(name) && null == Hudson.getInstance().getNode(name)) {
+          count++;
+        }
+      }
+    }
+    return count;
+  }
+
+  /**
+   * Launches specified machine in background, for NodeProvisioner to add and connect its agent.
+   * The machine stays reserved until its agent is added, or the launch failed.
+   */
+  Future<Node> launchAsync(final VirtualBoxTemplate template, final String virtualMachineName) {
+    return Computer.threadPoolForRemoting.submit(new Callable<Node>() {
+      public Node call() throws Exception {
+        Node node = null;
+        try {
+          node = launch(template, virtualMachineName);
+          return node;
+        } finally {
+          if (null != node) {
+            launched(virtualMachineName);
+          } else {
+            release(virtualMachineName);
+          }
+        }
+      }
+    });
+  }
+
+  /**
+   * Launches specified machine in background, and adds its agent, which connects on its own.
+   */
+  private void addAsync(final VirtualBoxTemplate template, final String virtualMachineName) {
+    Computer.threadPoolForRemoting.submit(new Callable<Void>() {
+      public Void call() throws Exception {
+        try {
+          Hudson.getInstance().addNode(launch(template, virtualMachineName));
+        } catch (Exception e) {
+          LOG.log(Level.WARNING, "Unable to start " + virtualMachineName + " on " + getDisplayName(), e);
+        } finally {
+          release(virtualMachineName);
+        }
+        return null;
+      }
+    });
   }
 
   @Override
   public boolean canProvision(Label label) {
+    for (VirtualBoxTemplate template : getTemplates()) {
+      if (template.matches(label)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Creates the agent of specified machine, and starts booting the machine in background.
+   * For a linked clone template, the machine is cloned first.
+   */
+  private Node launch(VirtualBoxTemplate template, String virtualMachineName) throws Exception {
+    VirtualBoxSystemLog log = new VirtualBoxSystemLog(LOG, "[VirtualBox] ");
+    if (template.isLinkedClone()) {
+      VirtualBoxMachine base = getVirtualMachine(template.getBaseVirtualMachineName());
+      if (null == base) {
+        throw new IllegalStateException("Unable to find base machine " + template.getBaseVirtualMachineName());
+      }
+      // a failed clone is not registered, the control deletes what it left behind
+      if (0 != VirtualBoxUtils.cloneVm(base, template.getSnapshotName(), virtualMachineName, log)) {
+        throw new IllegalStateException("Unable to clone " + base.getName() + " to " + virtualMachineName);
+      }
+    }
+    VirtualBoxSlave slave;
+    try {
+      slave = template.createSlave(this, virtualMachineName);
+    } catch (Exception e) {
+      if (template.isLinkedClone()) {
+        destroyClone(virtualMachineName, log);
+      }
+      throw e;
+    }
+    // boots while the agent is being added, its launcher then finds the machine starting or running
+    VirtualBoxUtils.startVmAsync(new VirtualBoxMachine(this, virtualMachineName), slave.getVirtualMachineType(),
+        slave.getLauncher().getGoldenSnapshotName(), log);
+    return slave;
+  }
+
+  /**
+   * @return true if a template of this host runs its agents on linked clones
+   */
+  public boolean hasLinkedCloneTemplates() {
+    for (VirtualBoxTemplate template : getTemplates()) {
+      if (template.isLinkedClone()) {
+        return true;
+      }
+    }
     return false;
   }
 
-  public synchronized List<VirtualBoxMachine> refreshVirtualMachinesList() {
-    virtualBoxMachines = VirtualBoxUtils.getMachines(this, new VirtualBoxSystemLog(LOG, "[VirtualBox] "));
-    return virtualBoxMachines;
+  /**
+   * @return true if specified machine is a linked clone created by a template of this host
+   */
+  public boolean isClone(String virtualMachineName) {
+    for (VirtualBoxTemplate template : getTemplates()) {
+      if (template.isClone(virtualMachineName)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Powers down and deletes specified linked clone. Failures are logged, the clone is left to the orphan cleanup.
+   */
+  void destroyClone(String virtualMachineName, VirtualBoxLogger log) {
+    VirtualBoxMachine clone = new VirtualBoxMachine(this, virtualMachineName);
+    try {
+      if (0 == VirtualBoxUtils.stopVm(clone, "powerdown", log)) {
+        VirtualBoxUtils.deleteVm(clone, log);
+      }
+    } catch (RuntimeException e) {
+      log.logError("Unable to delete " + virtualMachineName + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Deletes the linked clones of this host which are neither used by an agent nor being provisioned,
+   * left behind by a restart or a failed deletion.
+   */
+  void deleteOrphanClones(VirtualBoxLogger log) {
+    List<String> orphans = new ArrayList<String>();
+    for (VirtualBoxMachine machine : refreshVirtualMachinesList()) {
+      if (isClone(machine.getName())) {
+        orphans.add(machine.getName());
+      }
+    }
+    synchronized (this) {
+      orphans.removeAll(provisioning);
+      for (Node node : Hudson.getInstance().getNodes()) {
+        if (node instanceof VirtualBoxSlave && getDisplayName().equals(((VirtualBoxSlave) node).getHostName())) {
+          orphans.remove(((VirtualBoxSlave) node).getVirtualMachineName());
+        }
+      }
+      // reserved, so that provisioning does not pick them while they are deleted
+      provisioning.addAll(orphans);
+    }
+    for (String orphan : orphans) {
+      log.logInfo("Deleting orphan clone " + orphan + " of " + getDisplayName());
+      try {
+        destroyClone(orphan, log);
+      } finally {
+        release(orphan);
+      }
+    }
+  }
+
+  /**
+   * Picks a machine of specified template which is neither used by an agent nor being provisioned.
+   *
+   * @return name of the reserved machine, null if none is available or a cap is reached
+   */
+  synchronized String reserve(VirtualBoxTemplate template) {
+    String name = pick(template);
+    if (null != name) {
+      provisioning.add(name);
+    }
+    return name;
+  }
+
+  /**
+   * @return true if a machine of specified template can be reserved
+   */
+  synchronized boolean hasCapacity(VirtualBoxTemplate template) {
+    return null != pick(template);
+  }
+
+  private synchronized String pick(VirtualBoxTemplate template) {
+    releaseAdded();
+    Set<String> used = new HashSet<String>(provisioning);
+    int hostInstances = provisioning.size();
+    int templateInstances = 0;
+    for (String name : provisioning) {
+      if (template.isInstance(name)) {
+        templateInstances++;
+      }
+    }
+    for (Node node : Hudson.getInstance().getNodes()) {
+      if (node instanceof VirtualBoxSlave && getDisplayName().equals(((VirtualBoxSlave) node).getHostName())) {
+        String name = ((VirtualBoxSlave) node).getVirtualMachineName();
+        used.add(name);
+        hostInstances++;
+        if (template.isInstance(name)) {
+          templateInstances++;
+        }
+      }
+    }
+    if ((instanceCap > 0 && hostInstances >= instanceCap) || templateInstances >= template.getInstanceCap()) {
+      return null;
+    }
+    for (String name : template.getInstanceNames()) {
+      if (!used.contains(name)) {
+        return name;
+      }
+    }
+    return null;
+  }
+
+  private synchronized void release(String virtualMachineName) {
+    provisioning.remove(virtualMachineName);
+  }
+
+  private synchronized void launched(String virtualMachineName) {
+    launched.put(virtualMachineName, System.currentTimeMillis());
+  }
+
+  /**
+   * Releases the launched machines whose agent was added since, or was not within {@link #ADD_TIMEOUT}.
+   */
+  private synchronized void releaseAdded() {
+    long now = System.currentTimeMillis();
+    for (Iterator<Map.Entry<String, Long>> it = launched.entrySet().iterator(); it.hasNext(); ) {
+      Map.Entry<String, Long> entry = it.next();
+      if (null != Hudson.getInstance().getNode(entry.getKey()) || now - entry.getValue() > ADD_TIMEOUT) {
+        provisioning.remove(entry.getKey());
+        it.remove();
+      }
+    }
+  }
+
+  /**
+   * @return number of machines being provisioned on this host
+   */
+  synchronized int getProvisioningCount() {
+    releaseAdded();
+    return provisioning.size();
+  }
+
+  /**
+   * Never contacts the host, so that placement does not block the NodeProvisioner timer.
+   *
+   * @return load of this host last sampled by {@link VirtualBoxMetricsSampler},
+   * not available if the host could not be reached, or was not sampled for {@link #LOAD_TTL}
+   */
+  public VirtualBoxHostLoad getLoad() {
+    VirtualBoxHostLoad current = load;
+    return null != current && !current.isOlderThan(LOAD_TTL) ? current : VirtualBoxHostLoad.unavailable();
+  }
+
+  /**
+   * Samples the load of this host and records it in {@link #getMetrics()}.
+   *
+   * @return load of this host, not available if the host could not be reached
+   */
+  VirtualBoxHostLoad sampleLoad() {
+    VirtualBoxHostLoad current;
+    try {
+      current = VirtualBoxUtils.getHostLoad(this, new VirtualBoxSystemLog(LOG, "[VirtualBox] "));
+    } catch (Throwable e) {
+      LOG.log(Level.WARNING, "Unable to sample the load of " + getDisplayName(), e);
+      current = VirtualBoxHostLoad.unavailable();
+    }
+    load = current;
+    metrics.add(current);
+    return current;
+  }
+
+  /**
+   * @return recent loads of this host
+   */
+  public VirtualBoxHostMetrics getMetrics() {
+    return metrics;
   }
 
-  public synchronized VirtualBoxMachine getVirtualMachine(String virtualMachineName) {
-    if (null == virtualBoxMachines) {
+  /**
+   * Opens the connection pool of this host and lists its machines, recording the outcome for the page of this host.
+   */
+  void warmUp() {
+    VirtualBoxSystemLog log = new VirtualBoxSystemLog(LOG, "[VirtualBox] ");
+    try {
+      VirtualBoxUtils.connectAll(this, log);
       refreshVirtualMachinesList();
+      warmUpFailure = null;
+    } catch (Throwable e) {
+      LOG.log(Level.WARNING, "Unable to warm up connections to " + getDisplayName(), e);
+      warmUpFailure = null != e.getMessage() ? e.getMessage() : e.toString();
+    }
+    warmedUpAt = new Date();
+  }
+
+  /**
+   * @return end of the warm-up of this host at startup, null if it did not run
+   */
+  public Date getWarmedUpAt() {
+    return warmedUpAt;
+  }
+
+  /**
+   * @return why the warm-up of this host failed, null if it succeeded
+   */
+  public String getWarmUpFailure() {
+    return warmUpFailure;
+  }
+
+  /**
+   * @return VirtualBox version of this host, null if not connected yet
+   */
+  public String getVersion() {
+    return VirtualBoxUtils.getVersion(this);
+  }
+
+  /**
+   * Starts the machines of all the agents of this host together, in one batch per session type,
+   * for example after a maintenance of the host. Runs in background, POST only.
+   */
+  public HttpResponse doStartAll(StaplerRequest req) {
+    Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+    VirtualBoxPlugin.requirePost(req);
+    runBatchAsync(true);
+    return HttpResponses.redirectToDot();
+  }
+
+  /**
+   * Stops the machines of all the agents of this host together, in one batch per stop mode.
+   * Machines of agents using the restore stop mode are powered off, their snapshot is restored on next launch.
+   * Runs in background, POST only.
+   */
+  public HttpResponse doStopAll(StaplerRequest req) {
+    Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+    VirtualBoxPlugin.requirePost(req);
+    runBatchAsync(false);
+    return HttpResponses.redirectToDot();
+  }
+
+  private void runBatchAsync(final boolean start) {
+    final String operation = start ? "Start all" : "Stop all";
+    runningBatch = operation;
+    Computer.threadPoolForRemoting.submit(new Runnable() {
+      public void run() {
+        try {
+          runBatch(start, operation);
+        } catch (RuntimeException e) {
+          LOG.log(Level.WARNING, operation + " failed on " + getDisplayName(), e);
+        } finally {
+          if (operation.equals(runningBatch)) {
+            runningBatch = null;
+          }
+        }
+      }
+    });
+  }
+
+  private void runBatch(boolean start, String operation) {
+    Map<String, List<VirtualBoxMachine>> batches = new HashMap<String, List<VirtualBoxMachine>>();
+    Map<String, Long> results = new TreeMap<String, Long>();
+    for (Node node : Hudson.getInstance().getNodes()) {
+      if (!(node instanceof VirtualBoxSlave) || !getDisplayName().equals(((VirtualBoxSlave) node).getHostName())) {
+        continue;
+      }
+      VirtualBoxSlave slave = (VirtualBoxSlave) node;
+      VirtualBoxMachine machine = getVirtualMachine(slave.getVirtualMachineName());
+      if (null == machine) {
+        LOG.log(Level.WARNING, "Unable to find machine {0} of {1}",
+            new Object[]{slave.getVirtualMachineName(), getDisplayName()});
+        results.put(slave.getVirtualMachineName(), -1L);
+        continue;
+      }
+      String mode = start ? slave.getVirtualMachineType() : slave.getVirtualMachineStopMode();
+      if (VirtualBoxComputerLauncher.STOP_MODE_RESTORE.equals(mode)) {
+        mode = "powerdown";
+      }
+      List<VirtualBoxMachine> machines = batches.get(mode);
+      if (null == machines) {
+        machines = new ArrayList<VirtualBoxMachine>();
+        batches.put(mode, machines);
+      }
+      machines.add(machine);
+    }
+    VirtualBoxSystemLog log = new VirtualBoxSystemLog(LOG, "[VirtualBox] ");
+    for (Map.Entry<String, List<VirtualBoxMachine>> batch : batches.entrySet()) {
+      Map<VirtualBoxMachine, Long> batchResults;
+      try {
+        batchResults = start
+            ? VirtualBoxUtils.startVms(this, batch.getValue(), batch.getKey(), log)
+            : VirtualBoxUtils.stopVms(this, batch.getValue(), batch.getKey(), log);
+      } catch (RuntimeException e) {
+        LOG.log(Level.WARNING, "Unable to " + (start ? "start" : "stop") + " machines of " + getDisplayName(), e);
+        batchResults = new HashMap<VirtualBoxMachine, Long>();
+        for (VirtualBoxMachine machine : batch.getValue()) {
+          batchResults.put(machine, -1L);
+        }
+      }
+      for (Map.Entry<VirtualBoxMachine, Long> result : batchResults.entrySet()) {
+        results.put(result.getKey().getName(), result.getValue());
+      }
+    }
+    lastBatch = new BatchResult(operation, results);
+  }
+
+  /**
+   * @return results of the last start all or stop all, null if none
+   */
+  public BatchResult getLastBatch() {
+    return lastBatch;
+  }
+
+  /**
+   * @return start all or stop all running in background, null if none
+   */
+  public String getRunningBatch() {
+    return runningBatch;
+  }
+
+  /**
+   * Lists the virtual machines of this host. Concurrent calls share a single listing.
+   *
+   * @return virtual machines of this host
+   */
+  public List<VirtualBoxMachine> refreshVirtualMachinesList() {
+    FutureTask<List<VirtualBoxMachine>> task = new FutureTask<List<VirtualBoxMachine>>(new Callable<List<VirtualBoxMachine>>() {
+      public List<VirtualBoxMachine> call() {
+        List<VirtualBoxMachine> virtualBoxMachines = VirtualBoxUtils.getMachines(VirtualBoxCloud.this,
+            new VirtualBoxSystemLog(LOG, "[VirtualBox] "));
+        Inventory listed = new Inventory(virtualBoxMachines);
+        Inventory previous = inventory;
+        inventory = listed;
+        if (null == previous || !previous.macAddresses.equals(listed.macAddresses)) {
+          VirtualBoxMacAddressIndex.invalidate();
+        }
+        return virtualBoxMachines;
+      }
+    });
+    FutureTask<List<VirtualBoxMachine>> inFlight;
+    do {
+      if (refreshing.compareAndSet(null, task)) {
+        try {
+          task.run();
+        } finally {
+          refreshing.set(null);
+        }
+        inFlight = task;
+      } else {
+        inFlight = refreshing.get();
+      }
+    } while (null == inFlight);
+    try {
+      return inFlight.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while listing virtual machines of " + getDisplayName(), e);
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof RuntimeException) {
+        throw (RuntimeException) e.getCause();
+      }
+      if (e.getCause() instanceof Error) {
+        throw (Error) e.getCause();
+      }
+      throw new IllegalStateException(e.getCause());
+    }
+  }
+
+  /**
+   * @return virtual machines of this host, from the cached list when available
+   */
+  public List<VirtualBoxMachine> getVirtualMachines() {
+    Inventory current = inventory;
+    if (null == current) {
+      return refreshVirtualMachinesList();
+    }
+    if (current.isOlderThan(TimeUnit.SECONDS.toMillis(getInventoryTtl()))) {
+      refreshInBackground();
+    }
+    return current.machines;
+  }
+
+  /**
+   * Listed machines never block on the host: a stale list is served while it is refreshed in background.
+   * A machine missing from the list, which may have been created since, is looked up in a fresh list,
+   * at most once per {@link #MISS_TTL}: meanwhile it is reported missing, until a background refresh lists it.
+   *
+   * @param virtualMachineName virtual machine name
+   * @return virtual machine with specified name, null if not found
+   */
+  public VirtualBoxMachine getVirtualMachine(String virtualMachineName) {
+    Inventory current = inventory;
+    if (null != current) {
+      if (current.isOlderThan(TimeUnit.SECONDS.toMillis(getInventoryTtl()))) {
+        refreshInBackground();
+      }
+      VirtualBoxMachine machine = current.machinesByName.get(virtualMachineName);
+      if (null != machine) {
+        return machine;
+      }
+    }
+    Long missedAt = misses.get(virtualMachineName);
+    if (null != missedAt && System.currentTimeMillis() - missedAt < MISS_TTL) {
+      return null;
     }
-    for (VirtualBoxMachine machine: virtualBoxMachines) {
+    long listedAt = System.currentTimeMillis();
+    for (VirtualBoxMachine machine : refreshVirtualMachinesList()) {
       if (virtualMachineName.equals(machine.getName())) {
+        misses.remove(virtualMachineName);
         return machine;
       }
     }
+    misses.put(virtualMachineName, listedAt);
     return null;
   }
 
+  /**
+   * Never blocks on the host: a machine missing from the cached list is not looked up,
+   * the list is refreshed in background when missing or stale.
+   *
+   * @param virtualMachineName virtual machine name
+   * @return virtual machine with specified name from the cached list, null if not listed
+   */
+  VirtualBoxMachine getListedVirtualMachine(String virtualMachineName) {
+    Inventory current = inventory;
+    if (null == current || current.isOlderThan(TimeUnit.SECONDS.toMillis(getInventoryTtl()))) {
+      refreshInBackground();
+    }
+    return null != current ? current.machinesByName.get(virtualMachineName) : null;
+  }
+
+  private void refreshInBackground() {
+    if (null != refreshing.get()) {
+      return;
+    }
+    Computer.threadPoolForRemoting.submit(new Runnable() {
+      public void run() {
+        try {
+          refreshVirtualMachinesList();
+        } catch (Throwable e) {
+          LOG.log(Level.WARNING, "Unable to list virtual machines of " + getDisplayName(), e);
+        }
+      }
+    });
+  }
+
+  /**
+   * Immutable snapshot of the virtual machines of this host, indexed by name.
+   */
+  private static final class Inventory {
+    final List<VirtualBoxMachine> machines;
+    final Map<String, VirtualBoxMachine> machinesByName;
+    /**
+     * MAC Address by machine name, null if unknown.
+     */
+    final Map<String, String> macAddresses;
+    final long loadedAt = System.currentTimeMillis();
+
+    Inventory(List<VirtualBoxMachine> machines) {
+      this.machines = Collections.unmodifiableList(machines);
+      machinesByName = new ConcurrentHashMap<String, VirtualBoxMachine>(machines.size());
+      macAddresses = new HashMap<String, String>(machines.size());
+      for (VirtualBoxMachine machine : machines) {
+        machinesByName.put(machine.getName(), machine);
+        macAddresses.put(machine.getName(), machine.getMacAddress());
+      }
+    }
+
+    boolean isOlderThan(long ttl) {
+      return System.currentTimeMillis() - loadedAt > ttl;
+    }
+  }
+
+  /**
+   * Result code of every machine of a start all or stop all.
+   */
+  public static final class BatchResult {
+    private final String operation;
+    private final Map<String, Long> results;
+    private final long finishedAt = System.currentTimeMillis();
+
+    BatchResult(String operation, Map<String, Long> results) {
+      this.operation = operation;
+      this.results = Collections.unmodifiableMap(results);
+    }
+
+    public String getOperation() {
+      return operation;
+    }
+
+    /**
+     * @return result code by machine name, 0 for success
+     */
+    public Map<String, Long> getResults() {
+      return results;
+    }
+
+    public Date getFinishedAt() {
+      return new Date(finishedAt);
+    }
+  }
+
   @Extension
   public static class DescriptorImpl extends Descriptor<Cloud> {
     @Override
@@ -87,13 +902,25 @@ public class VirtualBoxCloud extends Cloud {
     ) {
       LOG.log(Level.INFO, "Testing connection to {0} with username {1}", new Object[]{url, username});
       try {
-        VirtualBoxUtils.getMachines(new VirtualBoxCloud("testConnection", url, username, password),
+        VirtualBoxUtils.testConnection(new VirtualBoxCloud("testConnection", url, username, password),
                 new VirtualBoxSystemLog(LOG, "[VirtualBox] "));
         return FormValidation.ok(Messages.VirtualBoxHost_success());
       } catch (Throwable e) {
         return FormValidation.error(e.getMessage());
       }
     }
+
+    /**
+     * For UI.
+     */
+    @SuppressWarnings({"UnusedDeclaration", "JavaDoc"})
+    public ListBoxModel doFillPlacementItems() {
+      ListBoxModel m = new ListBoxModel();
+      for (VirtualBoxPlacement placement : VirtualBoxPlacement.all()) {
+        m.add(placement.getDisplayName(), placement.getId());
+      }
+      return m;
+    }
   }
 
   public String getUrl() {
@@ -108,6 +935,44 @@ public class VirtualBoxCloud extends Cloud {
     return Scrambler.descramble(password);
   }
 
+  /**
+   * @return maximum number of agents running on this host at the same time, 0 for no limit
+   */
+  public int getInstanceCap() {
+    return instanceCap;
+  }
+
+  public List<VirtualBoxTemplate> getTemplates() {
+    // configurations saved before templates existed deserialize to null
+    return null != templates ? Collections.unmodifiableList(templates) : Collections.<VirtualBoxTemplate>emptyList();
+  }
+
+  /**
+   * @return number of connections kept open to this host, at least one
+   */
+  public int getConnectionPoolSize() {
+    // configurations saved before the pool existed deserialize to 0
+    return connectionPoolSize > 0 ? connectionPoolSize : DEFAULT_CONNECTION_POOL_SIZE;
+  }
+
+  /**
+   * @return seconds after which the list of virtual machines is refreshed
+   */
+  public int getInventoryTtl() {
+    return inventoryTtl > 0 ? inventoryTtl : DEFAULT_INVENTORY_TTL;
+  }
+
+  /**
+   * @return id of the placement of the agents provisioned by this cloud
+   */
+  public String getPlacement() {
+    return null != placement ? placement : VirtualBoxPlacement.DEFAULT_ID;
+  }
+
+  public VirtualBoxPlacement getPlacementPolicy() {
+    return VirtualBoxPlacement.get(getPlacement());
+  }
+
   @Override
   public String toString() {
     final StringBuffer sb = new StringBuffer();
@@ -1,14 +1,23 @@
 package hudson.plugins.virtualbox;
 
+import hudson.Util;
+import hudson.model.Failure;
+import hudson.model.Hudson;
 import hudson.model.Slave;
 import hudson.slaves.SlaveComputer;
 import java.io.IOException;
+import java.util.logging.Logger;
 import org.kohsuke.stapler.HttpResponse;
+import org.kohsuke.stapler.HttpResponses;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
 
 /**
  * @author Evgeny Mandrikov
  */
 public class VirtualBoxComputer extends SlaveComputer {
+  private static final Logger LOG = Logger.getLogger(VirtualBoxComputer.class.getName());
+
   public VirtualBoxComputer(Slave slave) {
     super(slave);
   }
@@ -18,6 +27,36 @@ public class VirtualBoxComputer extends SlaveComputer {
     return (VirtualBoxSlave) super.getNode();
   }
 
+  /**
+   * Captures a golden snapshot of the machine of this node, to be restored by the restore stop mode.
+   * Taken while the machine runs with its agent waiting for the master, the snapshot includes the memory of the machine.
+   * <p>
+   * Posted by the form of the node page, for example to http://localhost:8080/hudson/computer/virtual/captureSnapshot
+   * with parameter name=golden.
+   * </p>
+   *
+   * @param name snapshot name, the snapshot configured on the node if empty
+   */
+  public HttpResponse doCaptureSnapshot(StaplerRequest req, @QueryParameter String name) {
+    Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+    VirtualBoxPlugin.requirePost(req);
+    VirtualBoxSlave slave = getNode();
+    String snapshotName = null != Util.fixEmptyAndTrim(name) ? name.trim() : Util.fixEmptyAndTrim(slave.getSnapshotName());
+    if (null == snapshotName) {
+      throw new Failure("Snapshot name is mandatory");
+    }
+    VirtualBoxMachine machine = VirtualBoxPlugin.getVirtualBoxMachine(slave.getHostName(), slave.getVirtualMachineName());
+    if (null == machine) {
+      throw new Failure("Unable to find machine " + slave.getVirtualMachineName());
+    }
+    long result = VirtualBoxUtils.takeSnapshot(machine, snapshotName, "Golden snapshot of " + slave.getNodeName(),
+        new VirtualBoxSystemLog(LOG, "[VirtualBox] "));
+    if (0 != result) {
+      throw new Failure("Unable to take snapshot " + snapshotName + " of " + machine.getName());
+    }
+    return HttpResponses.redirectToDot();
+  }
+
   @Override
   public HttpResponse doDoDelete() throws IOException {
     // TODO powerOff on delete
@@ -2,12 +2,15 @@ package hudson.plugins.virtualbox;
 
 import org.kohsuke.stapler.DataBoundConstructor;
 
+import hudson.Util;
 import hudson.model.Descriptor;
 import hudson.model.TaskListener;
 import hudson.slaves.ComputerLauncher;
 import hudson.slaves.SlaveComputer;
 
 import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -25,6 +28,29 @@ public class VirtualBoxComputerLauncher extends ComputerLauncher {
 
   private static final int SECOND = 1000;
 
+  /**
+   * Readiness probes: retry the delegate launcher until it succeeds,
+   * wait for a TCP port of the guest to accept connections, or wait for a guest property to be set.
+   */
+  public static final String PROBE_DELEGATE = "delegate";
+  public static final String PROBE_TCP = "tcp";
+  public static final String PROBE_GUEST_PROPERTY = "guestProperty";
+
+  /**
+   * Stop mode which powers the machine off and restores a snapshot, so that every build gets a clean machine.
+   */
+  public static final String STOP_MODE_RESTORE = "restore";
+
+  public static final int DEFAULT_READINESS_TIMEOUT = 120;
+
+  public static final String DEFAULT_GUEST_PROPERTY = "/VirtualBox/GuestInfo/Net/0/V4/IP";
+
+  /**
+   * Bounds of the exponential backoff between two probes or two launch attempts.
+   */
+  private static final long MIN_RETRY_DELAY = SECOND / 2;
+  private static final long MAX_RETRY_DELAY = 10 * SECOND;
+
   private ComputerLauncher delegate;
 
   private String hostName;
@@ -35,28 +61,58 @@ public class VirtualBoxComputerLauncher extends ComputerLauncher {
 
   private String virtualMachineStopMode;
 
+  /**
+   * Snapshot restored by the restore stop mode, current snapshot if null.
+   */
+  private String snapshotName;
+
+  private String readinessProbe;
+
+  /**
+   * host:port for the TCP probe, property name for the guest property probe.
+   */
+  private String readinessProbeTarget;
+
+  /**
+   * Seconds given to the machine to accept the delegate launcher.
+   */
+  private int readinessTimeout;
+
   @DataBoundConstructor
   public VirtualBoxComputerLauncher(ComputerLauncher delegate, String hostName, String virtualMachineName,
-      String virtualMachineType, String virtualMachineStopMode) {
+      String virtualMachineType, String virtualMachineStopMode, String snapshotName, String readinessProbe,
+      String readinessProbeTarget, int readinessTimeout) {
     this.delegate = delegate;
     this.hostName = hostName;
     this.virtualMachineName = virtualMachineName;
     this.virtualMachineType = virtualMachineType;
     this.virtualMachineStopMode = virtualMachineStopMode;
+    this.snapshotName = snapshotName;
+    this.readinessProbe = readinessProbe;
+    this.readinessProbeTarget = readinessProbeTarget;
+    this.readinessTimeout = readinessTimeout;
+  }
+
+  public VirtualBoxComputerLauncher(ComputerLauncher delegate, String hostName, String virtualMachineName,
+      String virtualMachineType, String virtualMachineStopMode) {
+    this(delegate, hostName, virtualMachineName, virtualMachineType, virtualMachineStopMode, null, PROBE_DELEGATE, null,
+        DEFAULT_READINESS_TIMEOUT);
   }
 
   @Override
   public void launch(SlaveComputer computer, TaskListener listener) throws IOException, InterruptedException {
     log(listener, "Launching node " + virtualMachineName);
+    VirtualBoxMachine machine;
     try {
       // Connect to VirtualBox host
-      VirtualBoxMachine machine = VirtualBoxPlugin.getVirtualBoxMachine(hostName, virtualMachineName);
+      machine = VirtualBoxPlugin.getVirtualBoxMachine(hostName, virtualMachineName);
       if (machine == null) {
         listener.fatalError("Unable to find specified machine");
         return;
       }
       log(listener, Messages.VirtualBoxLauncher_startVM(machine));
-      long result = VirtualBoxUtils.startVm(machine, virtualMachineType, new VirtualBoxTaskListenerLog(listener, "[VirtualBox] "));
+      long result = VirtualBoxUtils.startVm(machine, virtualMachineType, getGoldenSnapshotName(),
+          new VirtualBoxTaskListenerLog(listener, "[VirtualBox] "));
       if (result != 0) {
         listener.fatalError("Unable to launch");
         return;
@@ -68,20 +124,113 @@ public class VirtualBoxComputerLauncher extends ComputerLauncher {
       return;
     }
     // Stage 2 of the launch. Called after the VirtualBox instance comes up.
-    boolean successful = false;
+    long deadline = System.currentTimeMillis() + getReadinessTimeout() * SECOND;
     int attempt = 0;
-    while (!successful) {
+    String readinessProbe = getReadinessProbe();
+    if (PROBE_TCP.equals(readinessProbe) && null == parseTcpTarget(getReadinessProbeTarget())) {
+      log(listener, "Invalid readiness probe target " + getReadinessProbeTarget()
+          + ", expected host:port, waiting for the stage 2 launcher instead");
+      readinessProbe = PROBE_DELEGATE;
+    }
+    // probed even when restoring a golden snapshot: one taken powered off boots the machine,
+    // one taken online resumes it already booted and passes at once
+    if (!PROBE_DELEGATE.equals(readinessProbe)) {
+      log(listener, "Waiting for node " + virtualMachineName + " to be ready (" + getReadinessProbe() + " "
+          + getReadinessProbeTarget() + ")");
+      while (!isReady(machine, listener)) {
+        attempt++;
+        if (!sleepBeforeRetry(attempt, deadline)) {
+          log(listener, "Node " + virtualMachineName + " not ready after " + getReadinessTimeout() + " seconds");
+          return;
+        }
+      }
+      attempt = 0;
+    }
+    while (!delegateLaunch(computer, listener)) {
       attempt++;
-      log(listener, "Sleep before stage 2 launcher, attempt " + attempt);
-      Thread.sleep(10 * SECOND);
-      successful = delegateLaunch(computer, listener);
-      if (!successful && attempt > 10) {
+      log(listener, "Stage 2 launcher failed, attempt " + attempt);
+      if (!sleepBeforeRetry(attempt, deadline)) {
         log(listener, "Maximum number of attempts reached");
         return;
       }
     }
   }
 
+  /**
+   * Sleeps with exponential backoff, within specified deadline.
+   *
+   * @return false if the deadline is reached
+   */
+  private static boolean sleepBeforeRetry(int attempt, long deadline) throws InterruptedException {
+    long remaining = deadline - System.currentTimeMillis();
+    if (remaining <= 0) {
+      return false;
+    }
+    long delay = Math.min(MIN_RETRY_DELAY << Math.min(attempt - 1, 10), MAX_RETRY_DELAY);
+    Thread.sleep(Math.min(delay, remaining));
+    return true;
+  }
+
+  /**
+   * Probes the machine cheaply, before handing off to the delegate launcher.
+   *
+   * @return true if the machine looks ready
+   */
+  protected boolean isReady(VirtualBoxMachine machine, TaskListener listener) {
+    if (PROBE_TCP.equals(getReadinessProbe())) {
+      InetSocketAddress target = parseTcpTarget(getReadinessProbeTarget());
+      if (null == target) {
+        return false;
+      }
+      Socket socket = new Socket();
+      try {
+        // resolved on every probe, the name of the guest may only be registered once it booted
+        socket.connect(new InetSocketAddress(target.getHostName(), target.getPort()), SECOND);
+        return true;
+      } catch (IOException e) {
+        return false;
+      } finally {
+        try {
+          socket.close();
+        } catch (IOException e) {
+          // nothing to do
+        }
+      }
+    }
+    if (PROBE_GUEST_PROPERTY.equals(getReadinessProbe())) {
+      try {
+        String value = VirtualBoxUtils.getGuestProperty(machine, getReadinessProbeTarget(),
+            new VirtualBoxTaskListenerLog(listener, "[VirtualBox] "));
+        return null != value && value.length() > 0;
+      } catch (RuntimeException e) {
+        log(listener, "Unable to read guest property: " + e.getMessage());
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @param target host:port
+   * @return unresolved address of specified target of the TCP probe, null if malformed
+   */
+  static InetSocketAddress parseTcpTarget(String target) {
+    int separator = null == target ? -1 : target.lastIndexOf(':');
+    if (separator <= 0) {
+      return null;
+    }
+    int port;
+    try {
+      port = Integer.parseInt(target.substring(separator + 1).trim());
+    } catch (NumberFormatException e) {
+      return null;
+    }
+    if (port < 1 || port > 65535) {
+      return null;
+    }
+    return InetSocketAddress.createUnresolved(target.substring(0, separator).trim(), port);
+  }
+
   /**
    * @param computer {@link hudson.model.Computer} for which agent should be launched
    * @param listener The progress of the launch, as well as any error, should be sent to this listener.
@@ -125,17 +274,69 @@ public class VirtualBoxComputerLauncher extends ComputerLauncher {
       VirtualBoxMachine machine = VirtualBoxPlugin.getVirtualBoxMachine(hostName, virtualMachineName);
       if (machine == null) {
         listener.fatalError("Unable to find specified machine");
+        return;
       }
       log(listener, Messages.VirtualBoxLauncher_stopVM(machine));
-      long result = VirtualBoxUtils.stopVm(machine, virtualMachineStopMode, new VirtualBoxTaskListenerLog(listener, "[VirtualBox] "));
+      VirtualBoxTaskListenerLog log = new VirtualBoxTaskListenerLog(listener, "[VirtualBox] ");
+      // agent removed, its linked clone is not needed anymore, nor its snapshot restored
+      boolean removedClone = null == computer.getNode() && machine.getHost().isClone(virtualMachineName);
+      boolean restore = !removedClone && STOP_MODE_RESTORE.equals(virtualMachineStopMode);
+      long result = VirtualBoxUtils.stopVm(machine, restore || removedClone ? "powerdown" : virtualMachineStopMode, log);
       if (result != 0) {
         listener.fatalError("Unable to stop");
+      } else if (removedClone) {
+        log(listener, "Deleting linked clone " + virtualMachineName);
+        VirtualBoxUtils.deleteVm(machine, log);
+      } else if (restore && 0 != VirtualBoxUtils.restoreSnapshot(machine, Util.fixEmptyAndTrim(snapshotName), log)) {
+        listener.fatalError("Unable to restore snapshot");
       }
     } catch (Throwable e) {
       listener.fatalError(e.getMessage(), e);
     }
   }
 
+  /**
+   * @return snapshot restored by the restore stop mode, current snapshot if null
+   */
+  public String getSnapshotName() {
+    return snapshotName;
+  }
+
+  /**
+   * With the restore stop mode, a named snapshot is also restored when starting a powered off machine.
+   * Taken while the machine runs with its agent waiting, it makes the agent available as soon as the machine resumes.
+   *
+   * @return snapshot to restore before starting the machine, null to start the machine as is
+   */
+  public String getGoldenSnapshotName() {
+    return STOP_MODE_RESTORE.equals(virtualMachineStopMode) ? Util.fixEmptyAndTrim(snapshotName) : null;
+  }
+
+  /**
+   * @return readiness probe, can be delegate, tcp or guestProperty
+   */
+  public String getReadinessProbe() {
+    return null != readinessProbe && readinessProbe.length() > 0 ? readinessProbe : PROBE_DELEGATE;
+  }
+
+  /**
+   * @return host:port for the TCP probe, property name for the guest property probe
+   */
+  public String getReadinessProbeTarget() {
+    if (PROBE_GUEST_PROPERTY.equals(getReadinessProbe())
+        && (null == readinessProbeTarget || readinessProbeTarget.length() == 0)) {
+      return DEFAULT_GUEST_PROPERTY;
+    }
+    return readinessProbeTarget;
+  }
+
+  /**
+   * @return seconds given to the machine to accept the delegate launcher
+   */
+  public int getReadinessTimeout() {
+    return readinessTimeout > 0 ? readinessTimeout : DEFAULT_READINESS_TIMEOUT;
+  }
+
   /**
    * @return delegation target
    */
@@ -1,16 +1,29 @@
 package hudson.plugins.virtualbox;
 
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 
 /**
  * @author Mihai Serban
  */
 public interface VirtualBoxControl {
   public long startVm(VirtualBoxMachine machine, String virtualMachineType, VirtualBoxLogger log);
+  public long startVm(VirtualBoxMachine machine, String virtualMachineType, String snapshotName, VirtualBoxLogger log);
   public long stopVm(VirtualBoxMachine machine, String virtualMachineStopMode, VirtualBoxLogger log);
+  public Map<VirtualBoxMachine, Long> startVms(Collection<VirtualBoxMachine> machines, String virtualMachineType, VirtualBoxLogger log);
+  public Map<VirtualBoxMachine, Long> stopVms(Collection<VirtualBoxMachine> machines, String virtualMachineStopMode, VirtualBoxLogger log);
+  public long restoreSnapshot(VirtualBoxMachine machine, String snapshotName, VirtualBoxLogger log);
+  public long takeSnapshot(VirtualBoxMachine machine, String snapshotName, String description, VirtualBoxLogger log);
 
   public List<VirtualBoxMachine> getMachines(VirtualBoxCloud host, VirtualBoxLogger log);
+  public VirtualBoxHostLoad getHostLoad(VirtualBoxLogger log);
   public String getMacAddress(VirtualBoxMachine machine, VirtualBoxLogger log);
+  public String getGuestProperty(VirtualBoxMachine machine, String property, VirtualBoxLogger log);
+
+  public long cloneVm(VirtualBoxMachine machine, String snapshotName, String cloneName, VirtualBoxLogger log);
+  public long unregisterVm(VirtualBoxMachine machine, VirtualBoxLogger log);
+  public long deleteVm(VirtualBoxMachine machine, VirtualBoxLogger log);
   public void disconnect();
 
   public boolean isConnected();
@@ -0,0 +1,159 @@
+package hudson.plugins.virtualbox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-size pool of connections to a single VirtualBox host.
+ * <p>
+ * Lookups are lock-free; a slot is locked only while its connection is being (re)created,
+ * so a slow reconnect never blocks the other slots of this host, nor other hosts.
+ * </p>
+ * <p>
+ * Each slot remembers when its connection was last seen alive, either by {@link VirtualBoxKeepAlive}
+ * or by an explicit check, so that the hot path does not pay a round trip to the host on every call.
+ * </p>
+ */
+final class VirtualBoxControlPool {
+
+  private final AtomicReferenceArray<VirtualBoxTimedControl> controls;
+  private final AtomicLongArray lastSeenAlive;
+  private final Object[] slotLocks;
+  private final AtomicInteger nextSlot = new AtomicInteger();
+  private final VirtualBoxUtils.Connector connector;
+
+  VirtualBoxControlPool(int size, VirtualBoxUtils.Connector connector) {
+    this.connector = connector;
+    controls = new AtomicReferenceArray<VirtualBoxTimedControl>(size);
+    lastSeenAlive = new AtomicLongArray(size);
+    slotLocks = new Object[size];
+    for (int i = 0; i < size; i++) {
+      slotLocks[i] = new Object();
+    }
+  }
+
+  int size() {
+    return controls.length();
+  }
+
+  /**
+   * @return connector opening the connections of this pool
+   */
+  VirtualBoxUtils.Connector getConnector() {
+    return connector;
+  }
+
+  /**
+   * @return a connected control for specified host, picked round-robin among the pool slots
+   */
+  VirtualBoxControl get(VirtualBoxCloud host, VirtualBoxLogger log) {
+    int slot = (nextSlot.getAndIncrement() & Integer.MAX_VALUE) % controls.length();
+    VirtualBoxControl vboxControl = controls.get(slot);
+    if (null != vboxControl && (isKnownAlive(slot) || checkConnected(slot, vboxControl))) {
+      return vboxControl;
+    }
+    return reconnect(slot, host, log);
+  }
+
+  /**
+   * Checks every open connection and re-establishes the lost ones.
+   */
+  void keepAlive(VirtualBoxCloud host, VirtualBoxLogger log) {
+    for (int slot = 0; slot < controls.length(); slot++) {
+      VirtualBoxControl vboxControl = controls.get(slot);
+      if (null == vboxControl || checkConnected(slot, vboxControl)) {
+        continue;
+      }
+      try {
+        reconnect(slot, host, log);
+      } catch (RuntimeException e) {
+        log.logWarning("Unable to reconnect to " + host.getUrl() + ": " + e.getMessage());
+      }
+    }
+  }
+
+  /**
+   * Opens the connections of all the empty slots.
+   */
+  void connectAll(VirtualBoxCloud host, VirtualBoxLogger log) {
+    for (int slot = 0; slot < controls.length(); slot++) {
+      if (null == controls.get(slot)) {
+        reconnect(slot, host, log);
+      }
+    }
+  }
+
+  /**
+   * Forgets that specified connection was alive, so that it is checked again on next use.
+   */
+  void suspect(VirtualBoxControl vboxControl) {
+    for (int slot = 0; slot < controls.length(); slot++) {
+      if (vboxControl == controls.get(slot)) {
+        lastSeenAlive.set(slot, 0);
+      }
+    }
+  }
+
+  private boolean isKnownAlive(int slot) {
+    return System.currentTimeMillis() - lastSeenAlive.get(slot) < VirtualBoxKeepAlive.LIVENESS_TIMEOUT;
+  }
+
+  private boolean checkConnected(int slot, VirtualBoxControl vboxControl) {
+    if (vboxControl.isConnected()) {
+      lastSeenAlive.set(slot, System.currentTimeMillis());
+      return true;
+    }
+    lastSeenAlive.set(slot, 0);
+    return false;
+  }
+
+  private VirtualBoxControl reconnect(int slot, VirtualBoxCloud host, VirtualBoxLogger log) {
+    synchronized (slotLocks[slot]) {
+      // another thread may have reconnected this slot while we were waiting
+      VirtualBoxTimedControl vboxControl = controls.get(slot);
+      if (null != vboxControl) {
+        if (isKnownAlive(slot) || checkConnected(slot, vboxControl)) {
+          return vboxControl;
+        }
+        log.logInfo("Lost connection to " + host.getUrl() + ", reconnecting");
+        controls.set(slot, null); // force a reconnect
+        VirtualBoxUtils.forgetVersion(host);
+        // its web session may still be alive, kept busy by its event listener
+        vboxControl.retire();
+      }
+      vboxControl = new VirtualBoxTimedControl(connector.connect(host, log), host);
+      controls.set(slot, vboxControl);
+      lastSeenAlive.set(slot, System.currentTimeMillis());
+      return vboxControl;
+    }
+  }
+
+  /**
+   * Empties all the slots, leaving the connections to be disconnected by the caller.
+   *
+   * @return connections which were open
+   */
+  List<VirtualBoxTimedControl> detachAll() {
+    List<VirtualBoxTimedControl> detached = new ArrayList<VirtualBoxTimedControl>();
+    for (int i = 0; i < controls.length(); i++) {
+      VirtualBoxTimedControl vboxControl = controls.getAndSet(i, null);
+      lastSeenAlive.set(i, 0);
+      if (null != vboxControl) {
+        detached.add(vboxControl);
+      }
+    }
+    return detached;
+  }
+
+  /**
+   * Empties all the slots, disconnecting each connection once the calls still using it have returned.
+   */
+  void retireAll() {
+    for (VirtualBoxTimedControl vboxControl : detachAll()) {
+      vboxControl.retire();
+    }
+  }
+}
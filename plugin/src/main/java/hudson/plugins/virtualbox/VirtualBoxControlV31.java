@@ -2,7 +2,11 @@ package hudson.plugins.virtualbox;
 
 import com.sun.xml.ws.commons.virtualbox_3_1.*;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
 
 /**
  * @author Evgeny Mandrikov
@@ -13,14 +17,37 @@ public final class VirtualBoxControlV31 implements VirtualBoxControl {
   private final String userName;
   private final String password;
 
+  /**
+   * Logged-on web sessions, reused across operations.
+   */
+  private final VirtualBoxWebSessionPool<ConnectionHolder> connections = new VirtualBoxWebSessionPool<ConnectionHolder>() {
+    @Override
+    protected ConnectionHolder create() {
+      return connect(hostUrl, userName, password);
+    }
+
+    @Override
+    protected void destroy(ConnectionHolder holder) {
+      holder.disconnect();
+    }
+
+    @Override
+    protected boolean validate(ConnectionHolder holder) {
+      holder.vbox.getVersion();
+      return true;
+    }
+  };
+
+  private final VirtualBoxMachineLocks machineLocks;
+
   public VirtualBoxControlV31(String hostUrl, String userName, String password) {
     // verify connection
     this.hostUrl = hostUrl;
     this.userName = userName;
     this.password = password;
+    machineLocks = VirtualBoxMachineLocks.forHost(hostUrl);
 
-    ConnectionHolder holder = connect(hostUrl, userName, password);
-    holder.disconnect();
+    connections.release(connections.borrow());
   }
 
   static class ConnectionHolder {
@@ -41,13 +68,13 @@ public final class VirtualBoxControlV31 implements VirtualBoxControl {
   }
 
   public void disconnect() {
+    connections.close();
   }
 
   public boolean isConnected() {
     try {
-      ConnectionHolder holder = connect(hostUrl, userName, password);
-      holder.vbox.getVersion();
-      holder.disconnect();
+      // validated on borrow
+      connections.release(connections.borrow());
       return true;
     } catch (Throwable e) {
       return false;
@@ -58,16 +85,48 @@ public final class VirtualBoxControlV31 implements VirtualBoxControl {
    * @param host VirtualBox host
    * @return list of virtual machines installed on specified host
    */
-  public synchronized List<VirtualBoxMachine> getMachines(VirtualBoxCloud host, VirtualBoxLogger log) {
+  public List<VirtualBoxMachine> getMachines(VirtualBoxCloud host, VirtualBoxLogger log) {
     List<VirtualBoxMachine> result = new ArrayList<VirtualBoxMachine>();
-    ConnectionHolder holder = connect(hostUrl, userName, password);
-    for (IMachine machine : holder.vbox.getMachines()) {
-      result.add(new VirtualBoxMachine(host, machine.getName()));
+    ConnectionHolder holder = connections.borrow();
+    try {
+      for (IMachine machine : holder.vbox.getMachines()) {
+        result.add(new VirtualBoxMachine(host, machine.getName()));
+      }
+    } catch (RuntimeException e) {
+      connections.invalidate(holder);
+      throw e;
     }
-    holder.disconnect();
+    connections.release(holder);
     return result;
   }
 
+  /**
+   * Resources of this host, without its CPU load.
+   *
+   * @return load of this host
+   */
+  public VirtualBoxHostLoad getHostLoad(VirtualBoxLogger log) {
+    ConnectionHolder holder = connections.borrow();
+    VirtualBoxHostLoad load;
+    try {
+      IHost host = holder.vbox.getHost();
+      int running = 0;
+      for (IMachine machine : holder.vbox.getMachines()) {
+        if (org.virtualbox_3_1.MachineState.RUNNING == machine.getState()
+            || org.virtualbox_3_1.MachineState.PAUSED == machine.getState()) {
+          running++;
+        }
+      }
+      load = new VirtualBoxHostLoad(host.getMemorySize(), host.getMemoryAvailable(), host.getProcessorOnlineCount(),
+          Double.NaN, running);
+    } catch (RuntimeException e) {
+      connections.invalidate(holder);
+      throw e;
+    }
+    connections.release(holder);
+    return load;
+  }
+
   /**
    * Starts specified VirtualBox virtual machine.
    *
@@ -75,11 +134,49 @@ public final class VirtualBoxControlV31 implements VirtualBoxControl {
    * @param type      session type (can be headless, vrdp, gui, sdl)
    * @return result code
    */
-  public synchronized long startVm(VirtualBoxMachine vbMachine, String type, VirtualBoxLogger log) {
-    ConnectionHolder holder = connect(hostUrl, userName, password);
+  public long startVm(VirtualBoxMachine vbMachine, String type, VirtualBoxLogger log) {
+    return startVm(vbMachine, type, null, log);
+  }
+
+  /**
+   * Starts specified VirtualBox virtual machine, restoring specified snapshot first if the machine is powered off.
+   *
+   * @param vbMachine    virtual machine to start
+   * @param type         session type (can be headless, vrdp, gui, sdl)
+   * @param snapshotName snapshot to restore, null to start from the current state
+   * @return result code
+   */
+  public long startVm(VirtualBoxMachine vbMachine, String type, String snapshotName, VirtualBoxLogger log) {
+    Lock lock = machineLocks.lock(vbMachine);
+    try {
+      ConnectionHolder holder = connections.borrow();
+      try {
+        if (null != snapshotName) {
+          IMachine machine = holder.vbox.findMachine(vbMachine.getName());
+          if (org.virtualbox_3_1.MachineState.POWERED_OFF == machine.getState()
+              || org.virtualbox_3_1.MachineState.ABORTED == machine.getState()) {
+            long result = restoreSnapshot(holder, vbMachine, snapshotName, log);
+            if (0 != result) {
+              connections.release(holder);
+              return result;
+            }
+          }
+        }
+        long result = startVm(holder, vbMachine, type);
+        connections.release(holder);
+        return result;
+      } catch (RuntimeException e) {
+        connections.invalidate(holder);
+        throw e;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private long startVm(ConnectionHolder holder, VirtualBoxMachine vbMachine, String type) {
     IMachine machine = holder.vbox.findMachine(vbMachine.getName());
     if (org.virtualbox_3_1.MachineState.RUNNING == machine.getState()) {
-      holder.disconnect();
       return 0;
     }
     ISession session = holder.manager.getSessionObject(holder.vbox);
@@ -93,7 +190,6 @@ public final class VirtualBoxControlV31 implements VirtualBoxControl {
     progress.waitForCompletion(-1);
     long result = progress.getResultCode();
     session.close(); // match openRemoteSession
-    holder.disconnect();
     return result;
   }
 
@@ -103,11 +199,26 @@ public final class VirtualBoxControlV31 implements VirtualBoxControl {
    * @param vbMachine virtual machine to stop
    * @return result code
    */
-  public synchronized long stopVm(VirtualBoxMachine vbMachine, String stopMode, VirtualBoxLogger log) {
-    ConnectionHolder holder = connect(hostUrl, userName, password);
+  public long stopVm(VirtualBoxMachine vbMachine, String stopMode, VirtualBoxLogger log) {
+    Lock lock = machineLocks.lock(vbMachine);
+    try {
+      ConnectionHolder holder = connections.borrow();
+      try {
+        long result = stopVm(holder, vbMachine);
+        connections.release(holder);
+        return result;
+      } catch (RuntimeException e) {
+        connections.invalidate(holder);
+        throw e;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private long stopVm(ConnectionHolder holder, VirtualBoxMachine vbMachine) {
     IMachine machine = holder.vbox.findMachine(vbMachine.getName());
     if (org.virtualbox_3_1.MachineState.RUNNING != machine.getState()) {
-      holder.disconnect();
       return 0;
     }
     ISession session = holder.manager.getSessionObject(holder.vbox);
@@ -117,19 +228,174 @@ public final class VirtualBoxControlV31 implements VirtualBoxControl {
     progress.waitForCompletion(-1);
     long result = progress.getResultCode();
     session.close(); // match openExistingSession
-    holder.disconnect();
     return result;
   }
 
+  /**
+   * Starts specified machines one after another, VirtualBox 3.x sessions being opened on the shared web sessions.
+   *
+   * @return result code of every machine
+   */
+  public Map<VirtualBoxMachine, Long> startVms(Collection<VirtualBoxMachine> vbMachines, String type,
+      VirtualBoxLogger log) {
+    Map<VirtualBoxMachine, Long> results = new LinkedHashMap<VirtualBoxMachine, Long>();
+    for (VirtualBoxMachine vbMachine : vbMachines) {
+      try {
+        results.put(vbMachine, startVm(vbMachine, type, log));
+      } catch (RuntimeException e) {
+        log.logFatalError("node " + vbMachine.getName() + " error: " + e.getMessage());
+        results.put(vbMachine, -1L);
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Stops specified machines one after another.
+   *
+   * @return result code of every machine
+   */
+  public Map<VirtualBoxMachine, Long> stopVms(Collection<VirtualBoxMachine> vbMachines, String stopMode,
+      VirtualBoxLogger log) {
+    Map<VirtualBoxMachine, Long> results = new LinkedHashMap<VirtualBoxMachine, Long>();
+    for (VirtualBoxMachine vbMachine : vbMachines) {
+      try {
+        results.put(vbMachine, stopVm(vbMachine, stopMode, log));
+      } catch (RuntimeException e) {
+        log.logFatalError("node " + vbMachine.getName() + " error: " + e.getMessage());
+        results.put(vbMachine, -1L);
+      }
+    }
+    return results;
+  }
+
+  /**
+   * Restores a snapshot of specified VirtualBox virtual machine, discarding its current state.
+   *
+   * @param vbMachine    virtual machine to restore, which should be stopped
+   * @param snapshotName snapshot to restore, current snapshot if null
+   * @return result code
+   */
+  public long restoreSnapshot(VirtualBoxMachine vbMachine, String snapshotName, VirtualBoxLogger log) {
+    Lock lock = machineLocks.lock(vbMachine);
+    try {
+      ConnectionHolder holder = connections.borrow();
+      try {
+        long result = restoreSnapshot(holder, vbMachine, snapshotName, log);
+        connections.release(holder);
+        return result;
+      } catch (RuntimeException e) {
+        connections.invalidate(holder);
+        throw e;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private long restoreSnapshot(ConnectionHolder holder, VirtualBoxMachine vbMachine, String snapshotName,
+      VirtualBoxLogger log) {
+    IMachine machine = holder.vbox.findMachine(vbMachine.getName());
+    ISnapshot snapshot = null != snapshotName ? machine.findSnapshot(snapshotName) : machine.getCurrentSnapshot();
+    if (null == snapshot) {
+      log.logFatalError("node " + vbMachine.getName() + " has no snapshot " + (null != snapshotName ? snapshotName : ""));
+      return -1;
+    }
+    ISession session = holder.manager.getSessionObject(holder.vbox);
+
+    holder.vbox.openSession(session, machine.getId());
+    IProgress progress = session.getConsole().restoreSnapshot(snapshot);
+    progress.waitForCompletion(-1);
+    long result = progress.getResultCode();
+    session.close(); // match openSession
+    return result;
+  }
+
+  /**
+   * Takes a snapshot of specified VirtualBox virtual machine, including its memory if it runs.
+   *
+   * @param vbMachine    virtual machine
+   * @param snapshotName name of the new snapshot
+   * @param description  description of the new snapshot
+   * @return result code
+   */
+  public long takeSnapshot(VirtualBoxMachine vbMachine, String snapshotName, String description, VirtualBoxLogger log) {
+    Lock lock = machineLocks.lock(vbMachine);
+    try {
+      ConnectionHolder holder = connections.borrow();
+      try {
+        IMachine machine = holder.vbox.findMachine(vbMachine.getName());
+        ISession session = holder.manager.getSessionObject(holder.vbox);
+        if (org.virtualbox_3_1.MachineState.RUNNING == machine.getState()
+            || org.virtualbox_3_1.MachineState.PAUSED == machine.getState()) {
+          holder.vbox.openExistingSession(session, machine.getId());
+        } else {
+          holder.vbox.openSession(session, machine.getId());
+        }
+        IProgress progress = session.getConsole().takeSnapshot(snapshotName, description);
+        progress.waitForCompletion(-1);
+        long result = progress.getResultCode();
+        session.close(); // match openSession or openExistingSession
+        connections.release(holder);
+        return result;
+      } catch (RuntimeException e) {
+        connections.invalidate(holder);
+        throw e;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
   /**
    * @param vbMachine virtual machine
    * @return MAC Address of specified virtual machine
    */
-  public synchronized String getMacAddress(VirtualBoxMachine vbMachine, VirtualBoxLogger log) {
-    ConnectionHolder holder = connect(hostUrl, userName, password);
-    IMachine machine = holder.vbox.findMachine(vbMachine.getName());
-    String macAddress = machine.getNetworkAdapter(0L).getMACAddress();
-    holder.disconnect();
+  public String getMacAddress(VirtualBoxMachine vbMachine, VirtualBoxLogger log) {
+    ConnectionHolder holder = connections.borrow();
+    String macAddress;
+    try {
+      IMachine machine = holder.vbox.findMachine(vbMachine.getName());
+      macAddress = machine.getNetworkAdapter(0L).getMACAddress();
+    } catch (RuntimeException e) {
+      connections.invalidate(holder);
+      throw e;
+    }
+    connections.release(holder);
     return macAddress;
   }
+
+  /**
+   * @param vbMachine virtual machine
+   * @param property  property name, for example /VirtualBox/GuestInfo/Net/0/V4/IP
+   * @return property value, empty if not set
+   */
+  public String getGuestProperty(VirtualBoxMachine vbMachine, String property, VirtualBoxLogger log) {
+    ConnectionHolder holder = connections.borrow();
+    String value;
+    try {
+      IMachine machine = holder.vbox.findMachine(vbMachine.getName());
+      value = machine.getGuestPropertyValue(property);
+    } catch (RuntimeException e) {
+      connections.invalidate(holder);
+      throw e;
+    }
+    connections.release(holder);
+    return value;
+  }
+
+  public long cloneVm(VirtualBoxMachine vbMachine, String snapshotName, String cloneName, VirtualBoxLogger log) {
+    log.logFatalError("Linked clones are not supported by VirtualBox 3.x");
+    return -1;
+  }
+
+  public long unregisterVm(VirtualBoxMachine vbMachine, VirtualBoxLogger log) {
+    log.logFatalError("Unregistering machines is not supported by VirtualBox 3.x");
+    return -1;
+  }
+
+  public long deleteVm(VirtualBoxMachine vbMachine, VirtualBoxLogger log) {
+    log.logFatalError("Deleting machines is not supported by VirtualBox 3.x");
+    return -1;
+  }
 }
@@ -1,30 +1,108 @@
 package hudson.plugins.virtualbox;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.locks.Lock;
 import org.virtualbox_4_0.*;
+import org.virtualbox_4_0.jaxws.IUnknown;
 
 /**
  * @author Mihai Serban
  */
 public final class VirtualBoxControlV40 implements VirtualBoxControl {
 
+  private final String hostUrl;
+  private final String userName;
+  private final String password;
+
   private final VirtualBoxManager manager;
   private final IVirtualBox vbox;
 
+  /**
+   * Machine handles of every open web session, invalidated on machine changes.
+   */
+  private final List<VirtualBoxMachineCache<IMachine>> machineCaches = new CopyOnWriteArrayList<VirtualBoxMachineCache<IMachine>>();
+
+  private final VirtualBoxMachineCache<IMachine> machines = new VirtualBoxMachineCache<IMachine>();
+
+  /**
+   * Machines are locked on web sessions of their own, see {@link VirtualBoxWebSessionPool}.
+   */
+  private final VirtualBoxWebSessionPool<WebSession> webSessions = new VirtualBoxWebSessionPool<WebSession>() {
+    @Override
+    protected WebSession create() {
+      WebSession webSession = new WebSession(connect());
+      machineCaches.add(webSession.machines);
+      return webSession;
+    }
+
+    @Override
+    protected void destroy(WebSession webSession) {
+      machineCaches.remove(webSession.machines);
+      webSession.manager.disconnect();
+    }
+
+    @Override
+    protected boolean validate(WebSession webSession) {
+      webSession.manager.getVBox().getVersion();
+      return true;
+    }
+  };
+
+  private final VirtualBoxMachineLocks machineLocks;
+
+  private final VirtualBoxMachineEvents machineEvents;
+
+  private final VirtualBoxLatencies latencies;
+
+  private static final String CPU_LOAD_USER = "CPU/Load/User";
+  private static final String CPU_LOAD_KERNEL = "CPU/Load/Kernel";
+  private static final String RAM_USAGE_USED = "RAM/Usage/Used";
+  private static final List<String> METRICS = Arrays.asList(CPU_LOAD_USER, CPU_LOAD_KERNEL, RAM_USAGE_USED);
+
+  /**
+   * References of the host and of the running machines sampled by the performance collector of the main web session.
+   */
+  private final Set<String> collectedObjects = new HashSet<String>();
+
   public VirtualBoxControlV40(String hostUrl, String userName, String password) {
-    manager = VirtualBoxManager.createInstance(null);
-    manager.connect(hostUrl, userName, password);
+    this.hostUrl = hostUrl;
+    this.userName = userName;
+    this.password = password;
+    latencies = VirtualBoxLatencies.forHost(hostUrl);
+    machineLocks = VirtualBoxMachineLocks.forHost(hostUrl);
+    manager = connect();
     vbox = manager.getVBox();
+    machineCaches.add(machines);
+    machineEvents = new MachineEvents(hostUrl);
+    machineEvents.start();
+  }
+
+  private VirtualBoxManager connect() {
+    VirtualBoxManager m = VirtualBoxManager.createInstance(null);
+    m.connect(hostUrl, userName, password);
+    return m;
   }
 
-  public synchronized void disconnect() {
+  public void disconnect() {
+    machineEvents.stop();
+    webSessions.close();
     try {
       manager.disconnect();
     } catch (VBoxException e) {}
   }
 
-  public synchronized boolean isConnected() {
+  public boolean isConnected() {
     try {
       vbox.getVersion();
       return true;
@@ -37,16 +115,148 @@ public final class VirtualBoxControlV40 implements VirtualBoxControl {
    * Get virtual machines installed on specified host.
    *
    * @param host VirtualBox host
-   * @return list of virtual machines installed on specified host
+   * @return list of virtual machines installed on specified host, with their UUID, state, OS type and MAC Address
    */
-  public synchronized List<VirtualBoxMachine> getMachines(VirtualBoxCloud host, VirtualBoxLogger log) {
-    List<VirtualBoxMachine> result = new ArrayList<VirtualBoxMachine>();
-    for (IMachine machine : vbox.getMachines()) {
-      result.add(new VirtualBoxMachine(host, machine.getName()));
+  public List<VirtualBoxMachine> getMachines(final VirtualBoxCloud host, VirtualBoxLogger log) {
+    List<IMachine> vms = vbox.getMachines();
+    List<MachineState> states = getMachineStates(vms);
+    List<Callable<VirtualBoxMachine>> fetches = new ArrayList<Callable<VirtualBoxMachine>>(vms.size());
+    for (int i = 0; i < vms.size(); i++) {
+      final IMachine machine = vms.get(i);
+      final MachineState state = null != states ? states.get(i) : null;
+      fetches.add(new Callable<VirtualBoxMachine>() {
+        public VirtualBoxMachine call() {
+          return describe(host, machine, state);
+        }
+      });
+    }
+    return VirtualBoxInventory.fetchAll(fetches, log);
+  }
+
+  /**
+   * Resources of this host and of its running machines. CPU and memory usage are sampled by the performance
+   * collector, which is set up for the host and for each machine on the first call seeing it running,
+   * so they are only known from the next calls on.
+   *
+   * @return load of this host
+   */
+  public VirtualBoxHostLoad getHostLoad(VirtualBoxLogger log) {
+    IHost host = vbox.getHost();
+    List<IMachine> vms = vbox.getMachines();
+    List<MachineState> states = getMachineStates(vms);
+    List<IMachine> running = new ArrayList<IMachine>();
+    for (int i = 0; i < vms.size(); i++) {
+      MachineState state = null != states ? states.get(i) : vms.get(i).getState();
+      if (state.value() >= MachineState.FirstOnline.value() && state.value() <= MachineState.LastOnline.value()) {
+        running.add(vms.get(i));
+      }
+    }
+    Map<String, Map<String, Double>> metrics = collectMetrics(host, running);
+    List<VirtualBoxMachineLoad> machineLoads = new ArrayList<VirtualBoxMachineLoad>(running.size());
+    for (IMachine machine : running) {
+      Map<String, Double> machineMetrics = metrics.get(machine.getWrapped());
+      Double memoryUsed = null != machineMetrics ? machineMetrics.get(RAM_USAGE_USED) : null;
+      machineLoads.add(new VirtualBoxMachineLoad(machine.getName(), getCpuLoad(machineMetrics),
+          null != memoryUsed ? memoryUsed.longValue() / 1024 : -1));
+    }
+    return new VirtualBoxHostLoad(host.getMemorySize(), host.getMemoryAvailable(), host.getProcessorOnlineCount(),
+        getCpuLoad(metrics.get(host.getWrapped())), running.size(), machineLoads);
+  }
+
+  /**
+   * @return user and kernel CPU load between 0 and 1 from specified metrics, NaN until sampled
+   */
+  private static double getCpuLoad(Map<String, Double> metrics) {
+    if (null == metrics || !metrics.containsKey(CPU_LOAD_USER) || !metrics.containsKey(CPU_LOAD_KERNEL)) {
+      return Double.NaN;
+    }
+    // in percents
+    return Math.min((metrics.get(CPU_LOAD_USER) + metrics.get(CPU_LOAD_KERNEL)) / 100, 1);
+  }
+
+  /**
+   * Sets the performance collector up for the objects it does not sample yet, then reads the latest samples.
+   *
+   * @return latest value of each metric, by reference of the sampled object
+   */
+  private synchronized Map<String, Map<String, Double>> collectMetrics(IHost host, List<IMachine> machines) {
+    IPerformanceCollector collector = vbox.getPerformanceCollector();
+    List<IUnknown> objects = new ArrayList<IUnknown>(machines.size() + 1);
+    objects.add(host);
+    objects.addAll(machines);
+    List<IUnknown> added = new ArrayList<IUnknown>();
+    Set<String> references = new HashSet<String>();
+    for (IUnknown object : objects) {
+      references.add(object.getWrapped());
+      if (!collectedObjects.contains(object.getWrapped())) {
+        added.add(object);
+      }
+    }
+    if (!added.isEmpty()) {
+      collector.setupMetrics(METRICS, added, 5L, 1L);
+    }
+    // stopped machines are set up again if they start again
+    collectedObjects.retainAll(references);
+    collectedObjects.addAll(references);
+
+    Holder<List<String>> names = new Holder<List<String>>();
+    Holder<List<IUnknown>> returnedObjects = new Holder<List<IUnknown>>();
+    Holder<List<String>> units = new Holder<List<String>>();
+    Holder<List<Long>> scales = new Holder<List<Long>>();
+    Holder<List<Long>> sequenceNumbers = new Holder<List<Long>>();
+    Holder<List<Long>> indices = new Holder<List<Long>>();
+    Holder<List<Long>> lengths = new Holder<List<Long>>();
+    List<Integer> data = collector.queryMetricsData(METRICS, objects, names, returnedObjects, units, scales,
+        sequenceNumbers, indices, lengths);
+    Map<String, Map<String, Double>> result = new HashMap<String, Map<String, Double>>();
+    for (int i = 0; i < names.value.size(); i++) {
+      if (0 == lengths.value.get(i)) {
+        continue;
+      }
+      String reference = returnedObjects.value.get(i).getWrapped();
+      Map<String, Double> values = result.get(reference);
+      if (null == values) {
+        values = new HashMap<String, Double>();
+        result.put(reference, values);
+      }
+      int latest = (int) (indices.value.get(i) + lengths.value.get(i) - 1);
+      values.put(names.value.get(i), (double) data.get(latest) / scales.value.get(i));
     }
     return result;
   }
 
+  /**
+   * @return states of specified machines in a single round trip, null if not supported
+   */
+  private List<MachineState> getMachineStates(List<IMachine> vms) {
+    return null; // IVirtualBox.getMachineStates appeared in VirtualBox 4.2
+  }
+
+  private boolean supportsLinkedClones() {
+    return false; // IMachine.cloneTo appeared in VirtualBox 4.1
+  }
+
+  private IMachine createMachine(IVirtualBox vbox, String name, String osTypeId) {
+    return vbox.createMachine(null, name, osTypeId, null, false);
+  }
+
+  /**
+   * @return progress of the linked clone, null if not supported
+   */
+  private IProgress cloneTo(IMachine source, IMachine target) {
+    return null; // IMachine.cloneTo appeared in VirtualBox 4.1
+  }
+
+  private VirtualBoxMachine describe(VirtualBoxCloud host, IMachine machine, MachineState state) {
+    String uuid = machine.getId();
+    machines.put(uuid, machine);
+    if (null == state) {
+      state = machine.getState();
+    }
+    return new VirtualBoxMachine(host, machine.getName(), uuid, state.toString(), machine.getOSTypeId(),
+        machine.getNetworkAdapter(0L).getMACAddress());
+  }
+
   /**
    * Starts specified VirtualBox virtual machine.
    *
@@ -55,14 +265,48 @@ public final class VirtualBoxControlV40 implements VirtualBoxControl {
    * @param log
    * @return result code
    */
-  public synchronized long startVm(VirtualBoxMachine vbMachine, String type, VirtualBoxLogger log) {
-    IMachine machine = vbox.findMachine(vbMachine.getName());
+  public long startVm(VirtualBoxMachine vbMachine, String type, VirtualBoxLogger log) {
+    return startVm(vbMachine, type, null, log);
+  }
+
+  /**
+   * Starts specified VirtualBox virtual machine, restoring specified snapshot first if the machine is powered off.
+   * Restoring a snapshot taken while the machine was running, once booted, resumes it instead of booting it.
+   *
+   * @param vbMachine    virtual machine to start
+   * @param type         session type (can be headless, vrdp, gui, sdl)
+   * @param snapshotName snapshot to restore, null to start from the current state
+   * @param log
+   * @return result code
+   */
+  public long startVm(VirtualBoxMachine vbMachine, String type, String snapshotName, VirtualBoxLogger log) {
+    Lock lock = machineLocks.lock(vbMachine);
+    try {
+      WebSession webSession = webSessions.borrow();
+      try {
+        long result = startVm(webSession, vbMachine, type, snapshotName, log);
+        webSessions.release(webSession);
+        return result;
+      } catch (RuntimeException e) {
+        webSessions.invalidate(webSession);
+        throw e;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private long startVm(WebSession webSession, VirtualBoxMachine vbMachine, String type, String snapshotName,
+      VirtualBoxLogger log) {
+    IMachine machine = findMachine(webSession.manager.getVBox(), webSession.machines, vbMachine);
     if (null == machine) {
       log.logFatalError("Cannot find node: " + vbMachine.getName());
       return -1;
     }
 
     // states diagram: https://www.virtualbox.org/sdkref/_virtual_box_8idl.html#80b08f71210afe16038e904a656ed9eb
+    String machineId = vbMachine.getUuid();
+    long sequence = machineEvents.sequence(machineId);
     MachineState state = machine.getState();
     ISession session;
     IProgress progress;
@@ -70,9 +314,7 @@ public final class VirtualBoxControlV40 implements VirtualBoxControl {
     // wait for transient states to finish
     while (state.value() >= MachineState.FirstTransient.value() && state.value() <= MachineState.LastTransient.value()) {
       log.logInfo("node " + vbMachine.getName() + " in state " + state.toString());
-      try {
-        Thread.sleep(1000);
-      } catch (InterruptedException e) {}
+      sequence = machineEvents.awaitChange(machineId, sequence, 1000);
       state = machine.getState();
     }
 
@@ -85,7 +327,7 @@ public final class VirtualBoxControlV40 implements VirtualBoxControl {
     if (MachineState.Stuck == state || MachineState.Paused == state) {
       log.logInfo("starting node " + vbMachine.getName() + " from state " + state.toString());
       try {
-        session = getSession(machine);
+        session = getSession(webSession.manager, machine, machineId);
       } catch (Exception e) {
         log.logFatalError("node " + vbMachine.getName() + " openMachineSession: " + e.getMessage());
         return -1;
@@ -102,11 +344,11 @@ public final class VirtualBoxControlV40 implements VirtualBoxControl {
 
       long result = 0; // success
       if (null != progress) {
-        progress.waitForCompletion(-1);
+        waitForCompletion(progress);
         result = progress.getResultCode();
       }
 
-      releaseSession(session, machine);
+      releaseSession(session, machine, machineId);
       if (0 != result) {
         log.logFatalError("node " + vbMachine.getName() + " error: " + getVBProcessError(progress));
         return -1;
@@ -120,15 +362,23 @@ public final class VirtualBoxControlV40 implements VirtualBoxControl {
       state = machine.getState(); // update state
     }
 
+    if (null != snapshotName && (MachineState.PoweredOff == state || MachineState.Aborted == state)) {
+      long result = restoreSnapshot(webSession, vbMachine, snapshotName, log);
+      if (0 != result) {
+        return result;
+      }
+      state = machine.getState(); // Saved for a snapshot taken online
+    }
+
     log.logInfo("starting node " + vbMachine.getName() + " from state " + state.toString());
 
     // powerUp from Saved, Aborted or PoweredOff states
-    session = getSession(null);
+    session = getSession(webSession.manager, null, null);
     String env = "";
-    progress = machine.launchVMProcess(session, type, env);
-    progress.waitForCompletion(-1);
+    progress = launchVMProcess(machine, session, type, env);
+    waitForCompletion(progress);
     long result = progress.getResultCode();
-    releaseSession(session, machine);
+    releaseSession(session, machine, machineId);
 
     if (0 != result) {
       log.logFatalError("node " + vbMachine.getName() + " error: " + getVBProcessError(progress));
@@ -146,14 +396,33 @@ public final class VirtualBoxControlV40 implements VirtualBoxControl {
    * @param log
    * @return result code
    */
-  public synchronized long stopVm(VirtualBoxMachine vbMachine, String stopMode, VirtualBoxLogger log) {
-    IMachine machine = vbox.findMachine(vbMachine.getName());
+  public long stopVm(VirtualBoxMachine vbMachine, String stopMode, VirtualBoxLogger log) {
+    Lock lock = machineLocks.lock(vbMachine);
+    try {
+      WebSession webSession = webSessions.borrow();
+      try {
+        long result = stopVm(webSession, vbMachine, stopMode, log);
+        webSessions.release(webSession);
+        return result;
+      } catch (RuntimeException e) {
+        webSessions.invalidate(webSession);
+        throw e;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private long stopVm(WebSession webSession, VirtualBoxMachine vbMachine, String stopMode, VirtualBoxLogger log) {
+    IMachine machine = findMachine(webSession.manager.getVBox(), webSession.machines, vbMachine);
     if (null == machine) {
       log.logFatalError("Cannot find node: " + vbMachine.getName());
       return -1;
     }
 
     // states diagram: https://www.virtualbox.org/sdkref/_virtual_box_8idl.html#80b08f71210afe16038e904a656ed9eb
+    String machineId = vbMachine.getUuid();
+    long sequence = machineEvents.sequence(machineId);
     MachineState state = machine.getState();
     ISession session;
     IProgress progress;
@@ -161,9 +430,7 @@ public final class VirtualBoxControlV40 implements VirtualBoxControl {
     // wait for transient states to finish
     while (state.value() >= MachineState.FirstTransient.value() && state.value() <= MachineState.LastTransient.value()) {
       log.logInfo("node " + vbMachine.getName() + " in state " + state.toString());
-      try {
-        Thread.sleep(1000);
-      } catch (InterruptedException e) {}
+      sequence = machineEvents.awaitChange(machineId, sequence, 1000);
       state = machine.getState();
     }
 
@@ -176,7 +443,7 @@ public final class VirtualBoxControlV40 implements VirtualBoxControl {
     }
 
     try {
-      session = getSession(machine);
+      session = getSession(webSession.manager, machine, machineId);
     } catch (Exception e) {
       log.logFatalError("node " + vbMachine.getName() + " openMachineSession: " + e.getMessage());
       return -1;
@@ -190,10 +457,10 @@ public final class VirtualBoxControlV40 implements VirtualBoxControl {
       progress = session.getConsole().saveState();
     }
 
-    progress.waitForCompletion(-1);
+    waitForCompletion(progress);
     long result = progress.getResultCode();
 
-    releaseSession(session, machine);
+    releaseSession(session, machine, machineId);
 
     if (0 != result) {
       log.logFatalError("node " + vbMachine.getName() + " error: " + getVBProcessError(progress));
@@ -204,18 +471,590 @@ public final class VirtualBoxControlV40 implements VirtualBoxControl {
     return result;
   }
 
+  /**
+   * Starts specified VirtualBox virtual machines together: every machine is launched on a web session of its own
+   * before waiting for any of them, so that the batch takes about the time of the slowest machine.
+   * Machines which are neither powered off, saved nor aborted are started one after another, as by {@link #startVm}.
+   *
+   * @param vbMachines virtual machines to start
+   * @param type       session type (can be headless, vrdp, gui, sdl)
+   * @param log
+   * @return result code of every machine
+   */
+  public Map<VirtualBoxMachine, Long> startVms(Collection<VirtualBoxMachine> vbMachines, String type,
+      VirtualBoxLogger log) {
+    return runBatch(vbMachines, true, type, log);
+  }
+
+  /**
+   * Stops specified VirtualBox virtual machines together: every machine is powered down or saved on a web session
+   * of its own before waiting for any of them, so that the batch takes about the time of the slowest machine.
+   *
+   * @param vbMachines virtual machines to stop
+   * @param stopMode   powerdown, or pause to save the state of the machines
+   * @param log
+   * @return result code of every machine
+   */
+  public Map<VirtualBoxMachine, Long> stopVms(Collection<VirtualBoxMachine> vbMachines, String stopMode,
+      VirtualBoxLogger log) {
+    return runBatch(vbMachines, false, stopMode, log);
+  }
+
+  private Map<VirtualBoxMachine, Long> runBatch(Collection<VirtualBoxMachine> vbMachines, boolean start, String mode,
+      VirtualBoxLogger log) {
+    // locked in name order, so that concurrent batches cannot deadlock
+    List<VirtualBoxMachine> sorted = new ArrayList<VirtualBoxMachine>(new TreeSet<VirtualBoxMachine>(vbMachines));
+    Map<VirtualBoxMachine, Long> results = new LinkedHashMap<VirtualBoxMachine, Long>();
+    // no more machines at once than web sessions may be handed out
+    int chunkSize = webSessions.getMaxActive();
+    for (int from = 0; from < sorted.size(); from += chunkSize) {
+      runBatch(sorted.subList(from, Math.min(from + chunkSize, sorted.size())), start, mode, results, log);
+    }
+    return results;
+  }
+
+  private void runBatch(List<VirtualBoxMachine> sorted, boolean start, String mode,
+      Map<VirtualBoxMachine, Long> results, VirtualBoxLogger log) {
+    List<Lock> locks = new ArrayList<Lock>(sorted.size());
+    try {
+      for (VirtualBoxMachine vbMachine : sorted) {
+        locks.add(machineLocks.lock(vbMachine));
+      }
+      List<WebSession> sessions;
+      try {
+        sessions = webSessions.borrow(sorted.size());
+      } catch (RuntimeException e) {
+        for (VirtualBoxMachine vbMachine : sorted) {
+          new BatchOperation(vbMachine).fail(e, log);
+          results.put(vbMachine, -1L);
+        }
+        return;
+      }
+      List<BatchOperation> operations = new ArrayList<BatchOperation>(sorted.size());
+      for (int i = 0; i < sorted.size(); i++) {
+        BatchOperation operation = new BatchOperation(sorted.get(i));
+        operation.webSession = sessions.get(i);
+        try {
+          if (start) {
+            beginStart(operation, mode, log);
+          } else {
+            beginStop(operation, mode, log);
+          }
+          operations.add(operation);
+        } catch (RuntimeException e) {
+          operation.fail(e, log);
+          results.put(operation.vbMachine, -1L);
+        }
+      }
+      for (BatchOperation operation : operations) {
+        try {
+          results.put(operation.vbMachine, operation.finish(log));
+        } catch (RuntimeException e) {
+          operation.fail(e, log);
+          results.put(operation.vbMachine, -1L);
+        }
+      }
+    } finally {
+      for (Lock lock : locks) {
+        lock.unlock();
+      }
+    }
+  }
+
+  private void beginStart(BatchOperation operation, String type, VirtualBoxLogger log) {
+    VirtualBoxMachine vbMachine = operation.vbMachine;
+    IMachine machine = findMachine(operation.webSession.manager.getVBox(), operation.webSession.machines, vbMachine);
+    MachineState state = null != machine ? machine.getState() : null;
+    if (MachineState.PoweredOff != state && MachineState.Saved != state && MachineState.Aborted != state) {
+      operation.result = startVm(operation.webSession, vbMachine, type, null, log);
+      return;
+    }
+    log.logInfo("starting node " + vbMachine.getName() + " from state " + state.toString());
+    operation.machine = machine;
+    operation.session = getSession(operation.webSession.manager, null, null);
+    operation.progress = launchVMProcess(machine, operation.session, type, "");
+    operation.done = "started";
+  }
+
+  private void beginStop(BatchOperation operation, String stopMode, VirtualBoxLogger log) {
+    VirtualBoxMachine vbMachine = operation.vbMachine;
+    IMachine machine = findMachine(operation.webSession.manager.getVBox(), operation.webSession.machines, vbMachine);
+    MachineState state = null != machine ? machine.getState() : null;
+    if (MachineState.Running != state && MachineState.Paused != state && MachineState.Stuck != state) {
+      operation.result = stopVm(operation.webSession, vbMachine, stopMode, log);
+      return;
+    }
+    log.logInfo("stopping node " + vbMachine.getName() + " from state " + state.toString());
+    operation.machine = machine;
+    operation.session = getSession(operation.webSession.manager, machine, vbMachine.getUuid());
+    if (MachineState.Stuck == state || "powerdown".equals(stopMode)) {
+      operation.progress = operation.session.getConsole().powerDown();
+    } else {
+      operation.progress = operation.session.getConsole().saveState();
+    }
+    operation.done = "stopped";
+  }
+
+  /**
+   * Start or stop of one machine of a batch, holding its web session until the machine is started or stopped.
+   */
+  private final class BatchOperation {
+    final VirtualBoxMachine vbMachine;
+    WebSession webSession;
+    IMachine machine;
+    ISession session;
+    IProgress progress;
+    String done;
+
+    /**
+     * Result code of an operation run at once, without progress.
+     */
+    long result;
+
+    BatchOperation(VirtualBoxMachine vbMachine) {
+      this.vbMachine = vbMachine;
+    }
+
+    long finish(VirtualBoxLogger log) {
+      if (null != progress) {
+        waitForCompletion(progress);
+        result = progress.getResultCode();
+        releaseSession(session, machine, vbMachine.getUuid());
+        if (0 != result) {
+          log.logFatalError("node " + vbMachine.getName() + " error: " + getVBProcessError(progress));
+        } else {
+          log.logInfo("node " + vbMachine.getName() + " " + done);
+        }
+      }
+      webSessions.release(webSession);
+      return result;
+    }
+
+    void fail(RuntimeException e, VirtualBoxLogger log) {
+      log.logFatalError("node " + vbMachine.getName() + " error: " + e.getMessage());
+      if (null != webSession) {
+        webSessions.invalidate(webSession);
+      }
+    }
+  }
+
+  /**
+   * Restores a snapshot of specified VirtualBox virtual machine, discarding its current state.
+   * A snapshot taken while the machine was running leaves it saved, ready to resume.
+   *
+   * @param vbMachine    virtual machine to restore, which should be stopped
+   * @param snapshotName snapshot to restore, current snapshot if null
+   * @param log
+   * @return result code
+   */
+  public long restoreSnapshot(VirtualBoxMachine vbMachine, String snapshotName, VirtualBoxLogger log) {
+    Lock lock = machineLocks.lock(vbMachine);
+    try {
+      WebSession webSession = webSessions.borrow();
+      try {
+        long result = restoreSnapshot(webSession, vbMachine, snapshotName, log);
+        webSessions.release(webSession);
+        return result;
+      } catch (RuntimeException e) {
+        webSessions.invalidate(webSession);
+        throw e;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private long restoreSnapshot(WebSession webSession, VirtualBoxMachine vbMachine, String snapshotName, VirtualBoxLogger log) {
+    IMachine machine = findMachine(webSession.manager.getVBox(), webSession.machines, vbMachine);
+    if (null == machine) {
+      log.logFatalError("Cannot find node: " + vbMachine.getName());
+      return -1;
+    }
+    ISnapshot snapshot = findSnapshot(machine, snapshotName);
+    if (null == snapshot) {
+      log.logFatalError("node " + vbMachine.getName() + " has no snapshot " + (null != snapshotName ? snapshotName : ""));
+      return -1;
+    }
+
+    String machineId = vbMachine.getUuid();
+    long sequence = machineEvents.sequence(machineId);
+    MachineState state = machine.getState();
+
+    // wait for transient states to finish
+    while (state.value() >= MachineState.FirstTransient.value() && state.value() <= MachineState.LastTransient.value()) {
+      log.logInfo("node " + vbMachine.getName() + " in state " + state.toString());
+      sequence = machineEvents.awaitChange(machineId, sequence, 1000);
+      state = machine.getState();
+    }
+
+    if (MachineState.Running == state || MachineState.Paused == state || MachineState.Stuck == state) {
+      log.logFatalError("node " + vbMachine.getName() + " should be stopped to restore a snapshot, not " + state.toString());
+      return -1;
+    }
+
+    log.logInfo("restoring node " + vbMachine.getName() + " to snapshot " + snapshot.getName());
+    ISession session = webSession.manager.getSessionObject();
+    lockMachine(machine, session, LockType.Write);
+    IProgress progress = session.getConsole().restoreSnapshot(snapshot);
+    waitForCompletion(progress);
+    long result = progress.getResultCode();
+    releaseSession(session, machine, machineId);
+
+    if (0 != result) {
+      log.logFatalError("node " + vbMachine.getName() + " error: " + getVBProcessError(progress));
+    } else {
+      log.logInfo("node " + vbMachine.getName() + " restored");
+    }
+    return result;
+  }
+
+  /**
+   * Takes a snapshot of specified VirtualBox virtual machine.
+   * Taken while the machine runs, the snapshot includes its memory, so that restoring it resumes the machine.
+   *
+   * @param vbMachine    virtual machine
+   * @param snapshotName name of the new snapshot
+   * @param description  description of the new snapshot
+   * @param log
+   * @return result code
+   */
+  public long takeSnapshot(VirtualBoxMachine vbMachine, String snapshotName, String description, VirtualBoxLogger log) {
+    Lock lock = machineLocks.lock(vbMachine);
+    try {
+      WebSession webSession = webSessions.borrow();
+      try {
+        long result = takeSnapshot(webSession, vbMachine, snapshotName, description, log);
+        webSessions.release(webSession);
+        return result;
+      } catch (RuntimeException e) {
+        webSessions.invalidate(webSession);
+        throw e;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private long takeSnapshot(WebSession webSession, VirtualBoxMachine vbMachine, String snapshotName, String description,
+      VirtualBoxLogger log) {
+    IMachine machine = findMachine(webSession.manager.getVBox(), webSession.machines, vbMachine);
+    if (null == machine) {
+      log.logFatalError("Cannot find node: " + vbMachine.getName());
+      return -1;
+    }
+
+    String machineId = vbMachine.getUuid();
+    ISession session;
+    MachineState state = machine.getState();
+    log.logInfo("taking snapshot " + snapshotName + " of node " + vbMachine.getName() + " in state " + state.toString());
+    if (MachineState.Running == state || MachineState.Paused == state) {
+      session = getSession(webSession.manager, machine, machineId);
+    } else {
+      session = webSession.manager.getSessionObject();
+      lockMachine(machine, session, LockType.Write);
+    }
+    IProgress progress = session.getConsole().takeSnapshot(snapshotName, description);
+    waitForCompletion(progress);
+    long result = progress.getResultCode();
+    releaseSession(session, machine, machineId);
+
+    if (0 != result) {
+      log.logFatalError("node " + vbMachine.getName() + " error: " + getVBProcessError(progress));
+    } else {
+      log.logInfo("snapshot " + snapshotName + " of node " + vbMachine.getName() + " taken");
+    }
+    return result;
+  }
+
   /**
    * MAC Address of specified virtual machine.
    *
    * @param vbMachine virtual machine
    * @return MAC Address of specified virtual machine
    */
-  public synchronized String getMacAddress(VirtualBoxMachine vbMachine, VirtualBoxLogger log) {
-    IMachine machine = vbox.findMachine(vbMachine.getName());
+  public String getMacAddress(VirtualBoxMachine vbMachine, VirtualBoxLogger log) {
+    IMachine machine = findMachine(vbox, machines, vbMachine);
     String macAddress = machine.getNetworkAdapter(0L).getMACAddress();
     return macAddress;
   }
 
+  /**
+   * Guest property of specified virtual machine, as published by the guest additions.
+   *
+   * @param vbMachine virtual machine
+   * @param property  property name, for example /VirtualBox/GuestInfo/Net/0/V4/IP
+   * @return property value, empty if not set
+   */
+  public String getGuestProperty(VirtualBoxMachine vbMachine, String property, VirtualBoxLogger log) {
+    IMachine machine = findMachine(vbox, machines, vbMachine);
+    return machine.getGuestPropertyValue(property);
+  }
+
+  /**
+   * Creates and registers a linked clone of specified virtual machine, sharing the disks of one of its snapshots.
+   * Clones of the same machine can be created concurrently, as the source machine is not locked.
+   *
+   * @param vbMachine    virtual machine to clone
+   * @param snapshotName snapshot to link the clone to, current snapshot if null
+   * @param cloneName    name of the new virtual machine
+   * @param log
+   * @return result code
+   */
+  public long cloneVm(VirtualBoxMachine vbMachine, String snapshotName, String cloneName, VirtualBoxLogger log) {
+    if (!supportsLinkedClones()) {
+      log.logFatalError("Linked clones are not supported by VirtualBox " + vbox.getVersion());
+      return -1;
+    }
+    WebSession webSession = webSessions.borrow();
+    try {
+      long result = cloneVm(webSession, vbMachine, snapshotName, cloneName, log);
+      webSessions.release(webSession);
+      return result;
+    } catch (RuntimeException e) {
+      webSessions.invalidate(webSession);
+      throw e;
+    }
+  }
+
+  private long cloneVm(WebSession webSession, VirtualBoxMachine vbMachine, String snapshotName, String cloneName,
+      VirtualBoxLogger log) {
+    IVirtualBox sessionVBox = webSession.manager.getVBox();
+    IMachine machine = findMachine(sessionVBox, webSession.machines, vbMachine);
+    if (null == machine) {
+      log.logFatalError("Cannot find node: " + vbMachine.getName());
+      return -1;
+    }
+
+    ISnapshot snapshot = findSnapshot(machine, snapshotName);
+    if (null == snapshot) {
+      log.logFatalError("node " + vbMachine.getName() + " has no snapshot " + (null != snapshotName ? snapshotName : ""));
+      return -1;
+    }
+
+    log.logInfo("cloning node " + vbMachine.getName() + " from snapshot " + snapshot.getName() + " to " + cloneName);
+    IMachine clone = createMachine(sessionVBox, cloneName, machine.getOSTypeId());
+    boolean registered = false;
+    try {
+      IProgress progress = cloneTo(snapshot.getMachine(), clone);
+      if (null == progress) {
+        log.logFatalError("Linked clones are not supported by VirtualBox " + vbox.getVersion());
+        return -1;
+      }
+      waitForCompletion(progress);
+      long result = progress.getResultCode();
+      if (0 != result) {
+        log.logFatalError("node " + cloneName + " error: " + getVBProcessError(progress));
+        return result;
+      }
+      sessionVBox.registerMachine(clone);
+      registered = true;
+    } finally {
+      if (!registered) {
+        deleteUnregistered(sessionVBox, clone, cloneName, log);
+      }
+    }
+    log.logInfo("node " + cloneName + " cloned");
+    return 0;
+  }
+
+  /**
+   * Deletes what a failed clone left behind. Not registered, it cannot be found by name,
+   * so its settings file is deleted through the clone itself, with the disks created in the folder of that file.
+   * Failures are logged, as the clone is already failing.
+   */
+  private void deleteUnregistered(IVirtualBox sessionVBox, IMachine clone, String cloneName, VirtualBoxLogger log) {
+    try {
+      String settingsFile = clone.getSettingsFilePath();
+      String folder = settingsFile.substring(0,
+          Math.max(settingsFile.lastIndexOf('/'), settingsFile.lastIndexOf('\\')) + 1);
+      List<IMedium> media = new ArrayList<IMedium>();
+      if (folder.length() > 0) {
+        collectMedia(sessionVBox.getHardDisks(), folder, media);
+      }
+      IProgress progress = clone.delete(media);
+      waitForCompletion(progress);
+      if (0 != progress.getResultCode()) {
+        log.logError("node " + cloneName + " not cleaned up: " + getVBProcessError(progress));
+      } else {
+        log.logInfo("node " + cloneName + " cleaned up, " + media.size() + " disks deleted");
+      }
+    } catch (VBoxException e) {
+      log.logError("node " + cloneName + " not cleaned up: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Collects specified media located in specified folder, and their differencing media, children first.
+   */
+  private static void collectMedia(List<IMedium> media, String folder, List<IMedium> found) {
+    for (IMedium medium : media) {
+      collectMedia(medium.getChildren(), folder, found);
+      if (medium.getLocation().startsWith(folder)) {
+        found.add(medium);
+      }
+    }
+  }
+
+  /**
+   * Unregisters specified virtual machine, keeping its files.
+   *
+   * @param vbMachine virtual machine to unregister, which should be stopped
+   * @param log
+   * @return result code
+   */
+  public long unregisterVm(VirtualBoxMachine vbMachine, VirtualBoxLogger log) {
+    return unregisterVm(vbMachine, false, log);
+  }
+
+  /**
+   * Unregisters specified virtual machine and deletes its settings and hard disks,
+   * which are only differencing images for a linked clone.
+   *
+   * @param vbMachine virtual machine to delete, which should be stopped
+   * @param log
+   * @return result code
+   */
+  public long deleteVm(VirtualBoxMachine vbMachine, VirtualBoxLogger log) {
+    return unregisterVm(vbMachine, true, log);
+  }
+
+  private long unregisterVm(VirtualBoxMachine vbMachine, boolean delete, VirtualBoxLogger log) {
+    Lock lock = machineLocks.lock(vbMachine);
+    try {
+      WebSession webSession = webSessions.borrow();
+      try {
+        long result = unregisterVm(webSession, vbMachine, delete, log);
+        webSessions.release(webSession);
+        return result;
+      } catch (RuntimeException e) {
+        webSessions.invalidate(webSession);
+        throw e;
+      }
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  private long unregisterVm(WebSession webSession, VirtualBoxMachine vbMachine, boolean delete, VirtualBoxLogger log) {
+    IMachine machine;
+    try {
+      machine = findMachine(webSession.manager.getVBox(), webSession.machines, vbMachine);
+    } catch (VBoxException e) {
+      machine = null; // already deleted by a concurrent cleanup
+    }
+    if (null == machine) {
+      log.logInfo("node " + vbMachine.getName() + " not registered");
+      return 0;
+    }
+
+    String machineId = machine.getId();
+    List<IMedium> media = machine.unregister(delete ? CleanupMode.DetachAllReturnHardDisksOnly : CleanupMode.DetachAllReturnNone);
+    invalidateMachine(machineId);
+    if (!delete) {
+      log.logInfo("node " + vbMachine.getName() + " unregistered");
+      return 0;
+    }
+
+    IProgress progress = machine.delete(media);
+    waitForCompletion(progress);
+    long result = progress.getResultCode();
+    if (0 != result) {
+      log.logFatalError("node " + vbMachine.getName() + " error: " + getVBProcessError(progress));
+    } else {
+      log.logInfo("node " + vbMachine.getName() + " deleted");
+    }
+    return result;
+  }
+
+  /**
+   * Resolves specified machine by name, or from the cache of the web session once its UUID is known.
+   *
+   * @return machine handle valid on the web session of specified {@code vbox}
+   */
+  private IMachine findMachine(IVirtualBox vbox, VirtualBoxMachineCache<IMachine> cache, VirtualBoxMachine vbMachine) {
+    String uuid = vbMachine.getUuid();
+    IMachine machine = null != uuid ? cache.get(uuid) : null;
+    if (null != machine) {
+      return machine;
+    }
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      machine = vbox.findMachine(vbMachine.getName());
+      failed = false;
+    } finally {
+      latencies.record("findMachine", start, failed);
+    }
+    if (null != machine) {
+      uuid = machine.getId();
+      vbMachine.setUuid(uuid);
+      cache.put(uuid, machine);
+    }
+    return machine;
+  }
+
+  private void lockMachine(IMachine machine, ISession session, LockType lockType) {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      machine.lockMachine(session, lockType);
+      failed = false;
+    } finally {
+      latencies.record("lockMachine", start, failed);
+    }
+  }
+
+  private IProgress launchVMProcess(IMachine machine, ISession session, String type, String env) {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      IProgress progress = machine.launchVMProcess(session, type, env);
+      failed = false;
+      return progress;
+    } finally {
+      latencies.record("launchVMProcess", start, failed);
+    }
+  }
+
+  private void waitForCompletion(IProgress progress) {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      progress.waitForCompletion(-1);
+      failed = false;
+    } finally {
+      latencies.record("waitForCompletion", start, failed);
+    }
+  }
+
+  private void unlockMachine(ISession session) {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      session.unlockMachine();
+      failed = false;
+    } finally {
+      latencies.record("unlockMachine", start, failed);
+    }
+  }
+
+  /**
+   * @return snapshot with specified name, current snapshot if null, null if not found
+   */
+  private ISnapshot findSnapshot(IMachine machine, String snapshotName) {
+    try {
+      return null != snapshotName ? machine.findSnapshot(snapshotName) : machine.getCurrentSnapshot();
+    } catch (VBoxException e) {
+      return null;
+    }
+  }
+
+  private void invalidateMachine(String uuid) {
+    for (VirtualBoxMachineCache<IMachine> cache : machineCaches) {
+      cache.invalidate(uuid);
+    }
+  }
+
   private String getVBProcessError(IProgress progress) {
     if (0 == progress.getResultCode()) {
       return "";
@@ -235,41 +1074,100 @@ public final class VirtualBoxControlV40 implements VirtualBoxControl {
     return SessionState.Spawning == state || SessionState.Unlocking == state;
   }
 
-  private ISession getSession(IMachine machine) {
-    ISession s = manager.getSessionObject();
+  private ISession getSession(VirtualBoxManager sessionManager, IMachine machine, String machineId) {
+    ISession s = sessionManager.getSessionObject();
+    long sequence = machineEvents.sequence(machineId);
     if (null != machine) {
-      machine.lockMachine(s, LockType.Shared);
+      lockMachine(machine, s, LockType.Shared);
       while (isTransientState(machine.getSessionState())) {
-        try {
-          Thread.sleep(500);
-        } catch (InterruptedException e) {}
+        sequence = machineEvents.awaitChange(machineId, sequence, 500);
       }
     }
 
     while (isTransientState(s.getState())) {
-      try {
-        Thread.sleep(500);
-      } catch (InterruptedException e) {}
+      sequence = machineEvents.awaitChange(machineId, sequence, 500);
     }
 
     return s;
   }
 
-  private void releaseSession(ISession s, IMachine machine) {
+  private void releaseSession(ISession s, IMachine machine, String machineId) {
+    long sequence = machineEvents.sequence(machineId);
     while (isTransientState(machine.getSessionState()) || isTransientState(s.getState())) {
-      try {
-        Thread.sleep(500);
-      } catch (InterruptedException e) {}
+      sequence = machineEvents.awaitChange(machineId, sequence, 500);
     }
 
     try {
-      s.unlockMachine();
+      unlockMachine(s);
     } catch (VBoxException e) {}
 
     while (isTransientState(machine.getSessionState()) || isTransientState(s.getState())) {
-      try {
-        Thread.sleep(500);
-      } catch (InterruptedException e) {}
+      sequence = machineEvents.awaitChange(machineId, sequence, 500);
+    }
+  }
+
+  /**
+   * A web session and the machine handles resolved on it.
+   */
+  private static final class WebSession {
+    final VirtualBoxManager manager;
+    final VirtualBoxMachineCache<IMachine> machines = new VirtualBoxMachineCache<IMachine>();
+
+    WebSession(VirtualBoxManager manager) {
+      this.manager = manager;
+    }
+  }
+
+  /**
+   * Machine and session state changes, received on a web session of their own.
+   * Renamed and unregistered machines are dropped from the machine caches.
+   */
+  private final class MachineEvents extends VirtualBoxMachineEvents {
+    private VirtualBoxManager eventManager;
+    private IEventSource source;
+    private IEventListener listener;
+
+    MachineEvents(String hostUrl) {
+      super(hostUrl);
+    }
+
+    @Override
+    protected void open() {
+      eventManager = connect();
+      source = eventManager.getVBox().getEventSource();
+      listener = source.createListener();
+      source.registerListener(listener, Arrays.asList(VBoxEventType.OnMachineStateChanged,
+          VBoxEventType.OnSessionStateChanged, VBoxEventType.OnMachineDataChanged,
+          VBoxEventType.OnMachineRegistered), false);
+    }
+
+    @Override
+    protected String nextMachineEvent(int timeout) {
+      IEvent event = source.getEvent(listener, timeout);
+      if (null == event) {
+        return null;
+      }
+      // passive listeners have to acknowledge every event
+      source.eventProcessed(listener, event);
+      String machineId = IMachineEvent.queryInterface(event).getMachineId();
+      VBoxEventType type = event.getType();
+      if (VBoxEventType.OnMachineDataChanged == type || VBoxEventType.OnMachineRegistered == type) {
+        invalidateMachine(machineId);
+      }
+      return machineId;
+    }
+
+    @Override
+    protected void close() {
+      if (null == eventManager) {
+        return;
+      }
+      if (null != listener) {
+        try {
+          source.unregisterListener(listener);
+        } catch (VBoxException e) {}
+      }
+      eventManager.disconnect();
     }
   }
 }
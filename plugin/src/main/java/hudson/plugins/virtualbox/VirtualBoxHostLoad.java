@@ -0,0 +1,126 @@
+package hudson.plugins.virtualbox;
+
+import java.util.Collections;
+import java.util.List;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Load of a VirtualBox host at some point in time, used to place new agents and kept by {@link VirtualBoxHostMetrics}.
+ */
+@ExportedBean
+public final class VirtualBoxHostLoad {
+
+  private final long memorySize;
+  private final long memoryAvailable;
+  private final long processorCount;
+  private final double cpuLoad;
+  private final int runningMachines;
+  private final List<VirtualBoxMachineLoad> machineLoads;
+  private final long sampledAt = System.currentTimeMillis();
+
+  /**
+   * @param memorySize      host memory, in megabytes
+   * @param memoryAvailable free host memory, in megabytes
+   * @param processorCount  online host processors
+   * @param cpuLoad         host CPU load between 0 and 1, NaN if unknown
+   * @param runningMachines virtual machines running on the host
+   * @param machineLoads    resources used by the running machines, empty if unknown
+   */
+  public VirtualBoxHostLoad(long memorySize, long memoryAvailable, long processorCount, double cpuLoad,
+      int runningMachines, List<VirtualBoxMachineLoad> machineLoads) {
+    this.memorySize = memorySize;
+    this.memoryAvailable = memoryAvailable;
+    this.processorCount = processorCount;
+    this.cpuLoad = cpuLoad;
+    this.runningMachines = runningMachines;
+    this.machineLoads = Collections.unmodifiableList(machineLoads);
+  }
+
+  public VirtualBoxHostLoad(long memorySize, long memoryAvailable, long processorCount, double cpuLoad,
+      int runningMachines) {
+    this(memorySize, memoryAvailable, processorCount, cpuLoad, runningMachines,
+        Collections.<VirtualBoxMachineLoad>emptyList());
+  }
+
+  /**
+   * @return load of a host which cannot be reached
+   */
+  static VirtualBoxHostLoad unavailable() {
+    return new VirtualBoxHostLoad(0, 0, 0, Double.NaN, 0);
+  }
+
+  /**
+   * @return false if the host could not be reached
+   */
+  @Exported
+  public boolean isAvailable() {
+    return memorySize > 0;
+  }
+
+  @Exported
+  public long getMemorySize() {
+    return memorySize;
+  }
+
+  @Exported
+  public long getMemoryAvailable() {
+    return memoryAvailable;
+  }
+
+  /**
+   * @return share of the host memory which is free, between 0 and 1
+   */
+  @Exported
+  public double getFreeMemoryRatio() {
+    return memorySize > 0 ? (double) memoryAvailable / memorySize : 0;
+  }
+
+  @Exported
+  public long getProcessorCount() {
+    return processorCount;
+  }
+
+  /**
+   * @return host CPU load between 0 and 1, NaN if unknown
+   */
+  public double getCpuLoad() {
+    return cpuLoad;
+  }
+
+  /**
+   * @return host CPU load in percents, -1 if unknown
+   */
+  @Exported
+  public int getCpuPercent() {
+    return Double.isNaN(cpuLoad) ? -1 : (int) Math.round(cpuLoad * 100);
+  }
+
+  @Exported
+  public int getRunningMachines() {
+    return runningMachines;
+  }
+
+  @Exported
+  public long getSampledAt() {
+    return sampledAt;
+  }
+
+  /**
+   * @return resources used by the running machines, empty if unknown
+   */
+  @Exported(inline = true)
+  public List<VirtualBoxMachineLoad> getMachineLoads() {
+    return machineLoads;
+  }
+
+  boolean isOlderThan(long ttl) {
+    return System.currentTimeMillis() - sampledAt > ttl;
+  }
+
+  @Override
+  public String toString() {
+    return "VirtualBoxHostLoad{memoryAvailable=" + memoryAvailable + "/" + memorySize + "MB, cpuLoad=" + cpuLoad
+        + ", runningMachines=" + runningMachines + '}';
+  }
+}
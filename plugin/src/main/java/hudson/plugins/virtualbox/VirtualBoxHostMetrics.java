@@ -0,0 +1,77 @@
+package hudson.plugins.virtualbox;
+
+import hudson.model.Api;
+import java.util.ArrayList;
+import java.util.List;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Latest loads sampled from a VirtualBox host by {@link VirtualBoxMetricsSampler}, in a ring buffer of fixed capacity.
+ * Exposed as /cloud/NAME/metrics/api/json.
+ */
+@ExportedBean
+public final class VirtualBoxHostMetrics {
+
+  /**
+   * Number of samples kept per host, one hour with the default sampling period.
+   */
+  static final int CAPACITY = Integer.getInteger(VirtualBoxHostMetrics.class.getName() + ".capacity", 360);
+
+  private final VirtualBoxHostLoad[] samples;
+
+  /**
+   * Index of the next sample to write.
+   */
+  private int next;
+
+  private int size;
+
+  public VirtualBoxHostMetrics() {
+    this(CAPACITY);
+  }
+
+  VirtualBoxHostMetrics(int capacity) {
+    samples = new VirtualBoxHostLoad[Math.max(capacity, 1)];
+  }
+
+  /**
+   * Records specified sample, overwriting the oldest one once full.
+   */
+  public synchronized void add(VirtualBoxHostLoad sample) {
+    samples[next] = sample;
+    next = (next + 1) % samples.length;
+    if (size < samples.length) {
+      size++;
+    }
+  }
+
+  /**
+   * @return samples, oldest first
+   */
+  @Exported(inline = true)
+  public synchronized List<VirtualBoxHostLoad> getSamples() {
+    List<VirtualBoxHostLoad> result = new ArrayList<VirtualBoxHostLoad>(size);
+    for (int i = size; i > 0; i--) {
+      result.add(samples[(next - i + samples.length) % samples.length]);
+    }
+    return result;
+  }
+
+  /**
+   * @return latest sample, null if none
+   */
+  @Exported(inline = true)
+  public synchronized VirtualBoxHostLoad getLatest() {
+    return size > 0 ? samples[(next - 1 + samples.length) % samples.length] : null;
+  }
+
+  @Exported
+  public int getCapacity() {
+    return samples.length;
+  }
+
+  public Api getApi() {
+    return new Api(this);
+  }
+}
@@ -0,0 +1,69 @@
+package hudson.plugins.virtualbox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Fetches the attributes of many machines in parallel, the VirtualBox web service having no bulk getters
+ * for most of them.
+ */
+final class VirtualBoxInventory {
+
+  private static final int THREADS = Integer.getInteger(VirtualBoxInventory.class.getName() + ".threads", 8);
+
+  private static final ExecutorService executor;
+
+  static {
+    ThreadPoolExecutor threadPool = new ThreadPoolExecutor(THREADS, THREADS, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "VirtualBox inventory #" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    threadPool.allowCoreThreadTimeOut(true);
+    executor = threadPool;
+  }
+
+  private VirtualBoxInventory() {
+  }
+
+  /**
+   * Runs specified fetches in parallel. A machine which cannot be described, for example because it was
+   * unregistered meanwhile, is left out of the result.
+   *
+   * @return results of the successful fetches, in order
+   */
+  static <T> List<T> fetchAll(List<Callable<T>> fetches, VirtualBoxLogger log) {
+    List<Future<T>> futures;
+    try {
+      futures = executor.invokeAll(fetches);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while listing virtual machines", e);
+    }
+    List<T> result = new ArrayList<T>(futures.size());
+    for (Future<T> future : futures) {
+      try {
+        result.add(future.get());
+      } catch (ExecutionException e) {
+        log.logWarning("Skipping virtual machine: " + e.getCause().getMessage());
+      } catch (InterruptedException e) {
+        // all done by invokeAll
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,45 @@
+package hudson.plugins.virtualbox;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+
+/**
+ * Periodically pings the cached connections to the VirtualBox hosts, so that web sessions do not expire
+ * between two operations and lost connections are re-established before they are needed.
+ */
+@Extension
+public class VirtualBoxKeepAlive extends AsyncPeriodicWork {
+
+  private static final Logger LOG = Logger.getLogger(VirtualBoxKeepAlive.class.getName());
+
+  /**
+   * Heartbeat period, set in seconds. Should stay below the session timeout of vboxwebsrv (300 seconds by default).
+   */
+  static final long PERIOD = TimeUnit.SECONDS.toMillis(Long.getLong(VirtualBoxKeepAlive.class.getName() + ".period", 60));
+
+  /**
+   * How long a successful heartbeat vouches for a connection.
+   */
+  static final long LIVENESS_TIMEOUT = 2 * PERIOD;
+
+  public VirtualBoxKeepAlive() {
+    super("VirtualBox keep-alive");
+  }
+
+  @Override
+  public long getRecurrencePeriod() {
+    return PERIOD;
+  }
+
+  @Override
+  protected void execute(TaskListener listener) throws IOException, InterruptedException {
+    VirtualBoxLogger log = new VirtualBoxSystemLog(LOG, "[VirtualBox] ");
+    for (VirtualBoxCloud host : VirtualBoxPlugin.getHosts()) {
+      VirtualBoxUtils.keepAlive(host, log);
+    }
+  }
+}
@@ -0,0 +1,93 @@
+package hudson.plugins.virtualbox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Latency histograms of the operations run against one VirtualBox host, since Hudson started.
+ * Filled by {@link VirtualBoxTimedControl} for the {@link VirtualBoxControl} calls,
+ * and by the 4.x controls for the web service calls they are made of.
+ */
+@ExportedBean
+public final class VirtualBoxLatencies {
+
+  private static final ConcurrentMap<String, VirtualBoxLatencies> HOSTS = new ConcurrentHashMap<String, VirtualBoxLatencies>();
+
+  private final String hostUrl;
+
+  private final ConcurrentMap<String, VirtualBoxLatencyHistogram> operations =
+      new ConcurrentHashMap<String, VirtualBoxLatencyHistogram>();
+
+  private VirtualBoxLatencies(String hostUrl) {
+    this.hostUrl = hostUrl;
+  }
+
+  /**
+   * @return latencies of specified host, shared by all its connections
+   */
+  public static VirtualBoxLatencies forHost(String hostUrl) {
+    VirtualBoxLatencies latencies = HOSTS.get(hostUrl);
+    if (null == latencies) {
+      VirtualBoxLatencies newLatencies = new VirtualBoxLatencies(hostUrl);
+      latencies = HOSTS.putIfAbsent(hostUrl, newLatencies);
+      if (null == latencies) {
+        latencies = newLatencies;
+      }
+    }
+    return latencies;
+  }
+
+  /**
+   * @return latencies of every host contacted so far, by URL
+   */
+  public static List<VirtualBoxLatencies> all() {
+    List<VirtualBoxLatencies> result = new ArrayList<VirtualBoxLatencies>(HOSTS.values());
+    Collections.sort(result, new Comparator<VirtualBoxLatencies>() {
+      public int compare(VirtualBoxLatencies a, VirtualBoxLatencies b) {
+        return a.hostUrl.compareTo(b.hostUrl);
+      }
+    });
+    return result;
+  }
+
+  /**
+   * Records a call started at specified {@link System#nanoTime()}.
+   */
+  public void record(String operation, long startNanos, boolean failed) {
+    long nanos = System.nanoTime() - startNanos;
+    VirtualBoxLatencyHistogram histogram = operations.get(operation);
+    if (null == histogram) {
+      VirtualBoxLatencyHistogram newHistogram = new VirtualBoxLatencyHistogram(operation);
+      histogram = operations.putIfAbsent(operation, newHistogram);
+      if (null == histogram) {
+        histogram = newHistogram;
+      }
+    }
+    histogram.record(nanos, failed);
+  }
+
+  @Exported
+  public String getHostUrl() {
+    return hostUrl;
+  }
+
+  /**
+   * @return histograms of the operations run so far, by name
+   */
+  @Exported(inline = true)
+  public List<VirtualBoxLatencyHistogram> getOperations() {
+    List<VirtualBoxLatencyHistogram> result = new ArrayList<VirtualBoxLatencyHistogram>(operations.values());
+    Collections.sort(result, new Comparator<VirtualBoxLatencyHistogram>() {
+      public int compare(VirtualBoxLatencyHistogram a, VirtualBoxLatencyHistogram b) {
+        return a.getOperation().compareTo(b.getOperation());
+      }
+    });
+    return result;
+  }
+}
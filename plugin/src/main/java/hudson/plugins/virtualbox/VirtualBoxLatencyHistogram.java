@@ -0,0 +1,133 @@
+package hudson.plugins.virtualbox;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Latencies of one operation against one VirtualBox host, counted in fixed buckets.
+ * Recording is lock-free, so that it can be done on every call.
+ */
+@ExportedBean
+public final class VirtualBoxLatencyHistogram {
+
+  /**
+   * Upper bounds of the buckets, in milliseconds. A last bucket counts the slower calls.
+   */
+  private static final long[] BOUNDS = {1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000, 30000, 60000, 120000};
+
+  private final String operation;
+  private final AtomicLongArray counts = new AtomicLongArray(BOUNDS.length + 1);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong errors = new AtomicLong();
+  private final AtomicLong totalNanos = new AtomicLong();
+  private final AtomicLong maxNanos = new AtomicLong();
+
+  public VirtualBoxLatencyHistogram(String operation) {
+    this.operation = operation;
+  }
+
+  /**
+   * @param nanos  duration of the call
+   * @param failed true if the call threw or returned an error code
+   */
+  public void record(long nanos, boolean failed) {
+    long millis = TimeUnit.NANOSECONDS.toMillis(nanos);
+    int bucket = 0;
+    while (bucket < BOUNDS.length && millis >= BOUNDS[bucket]) {
+      bucket++;
+    }
+    counts.incrementAndGet(bucket);
+    count.incrementAndGet();
+    totalNanos.addAndGet(nanos);
+    if (failed) {
+      errors.incrementAndGet();
+    }
+    long max = maxNanos.get();
+    while (nanos > max && !maxNanos.compareAndSet(max, nanos)) {
+      max = maxNanos.get();
+    }
+  }
+
+  @Exported
+  public String getOperation() {
+    return operation;
+  }
+
+  @Exported
+  public long getCount() {
+    return count.get();
+  }
+
+  @Exported
+  public long getErrors() {
+    return errors.get();
+  }
+
+  @Exported
+  public long getMeanMillis() {
+    long n = count.get();
+    return n > 0 ? TimeUnit.NANOSECONDS.toMillis(totalNanos.get() / n) : 0;
+  }
+
+  @Exported
+  public long getMaxMillis() {
+    return TimeUnit.NANOSECONDS.toMillis(maxNanos.get());
+  }
+
+  /**
+   * @return upper bound of the bucket holding specified percentile, in milliseconds, the maximum for the last bucket
+   */
+  public long getPercentileMillis(double percentile) {
+    long n = count.get();
+    if (0 == n) {
+      return 0;
+    }
+    long rank = (long) Math.ceil(n * percentile / 100);
+    long seen = 0;
+    for (int i = 0; i < BOUNDS.length; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return BOUNDS[i];
+      }
+    }
+    return getMaxMillis();
+  }
+
+  @Exported
+  public long getP50Millis() {
+    return getPercentileMillis(50);
+  }
+
+  @Exported
+  public long getP95Millis() {
+    return getPercentileMillis(95);
+  }
+
+  @Exported
+  public long getP99Millis() {
+    return getPercentileMillis(99);
+  }
+
+  /**
+   * @return number of calls per bucket, see {@link #getBucketBounds()}
+   */
+  @Exported
+  public long[] getBucketCounts() {
+    long[] result = new long[counts.length()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = counts.get(i);
+    }
+    return result;
+  }
+
+  /**
+   * @return upper bounds of the buckets in milliseconds, the last bucket having none
+   */
+  @Exported
+  public long[] getBucketBounds() {
+    return BOUNDS.clone();
+  }
+}
@@ -0,0 +1,53 @@
+package hudson.plugins.virtualbox;
+
+import hudson.Extension;
+import hudson.model.Api;
+import hudson.model.Hudson;
+import hudson.model.ManagementLink;
+import java.util.List;
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Shows the {@link VirtualBoxLatencies} of every host on the management page, also exported as
+ * /virtualbox-latencies/api/json.
+ */
+@Extension
+@ExportedBean
+public class VirtualBoxLatencyLink extends ManagementLink {
+
+  @Override
+  public String getIconFileName() {
+    return "monitor.png";
+  }
+
+  @Override
+  public String getUrlName() {
+    return "virtualbox-latencies";
+  }
+
+  public String getDisplayName() {
+    return Messages.VirtualBoxLatencyLink_displayName();
+  }
+
+  @Override
+  public String getDescription() {
+    return Messages.VirtualBoxLatencyLink_description();
+  }
+
+  /**
+   * @return latencies of every host contacted since Hudson started
+   */
+  @Exported(inline = true)
+  public List<VirtualBoxLatencies> getHosts() {
+    return VirtualBoxLatencies.all();
+  }
+
+  /**
+   * Exposes the URLs of the hosts, restricted to administrators as the page is.
+   */
+  public Api getApi() {
+    Hudson.getInstance().checkPermission(Hudson.ADMINISTER);
+    return new Api(this);
+  }
+}
@@ -0,0 +1,144 @@
+package hudson.plugins.virtualbox;
+
+import hudson.Extension;
+import hudson.model.Hudson;
+import hudson.model.Node;
+import hudson.slaves.ComputerListener;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Index of {@link VirtualBoxSlave}s by MAC Address, built from the machine lists of the hosts,
+ * so that discovering a slave does not cost a SOAP call per node.
+ * <p>
+ * The index is rebuilt lazily after nodes are added, removed or reconfigured, and after the MAC Addresses listed by a
+ * host changed. It is built from the cached lists only, never listing a host itself: slaves not found in the index
+ * are found by the caller the slow way, and then remembered across rebuilds.
+ * </p>
+ */
+public final class VirtualBoxMacAddressIndex {
+
+  private static volatile Map<String, String> nodeNames = new ConcurrentHashMap<String, String>();
+
+  /**
+   * MAC Addresses found without the index, which may not be listed yet.
+   */
+  private static final Map<String, String> remembered = new ConcurrentHashMap<String, String>();
+  private static volatile boolean stale = true;
+
+  private VirtualBoxMacAddressIndex() {
+  }
+
+  /**
+   * @param macAddress MAC Address, with or without separators
+   * @return slave whose machine has specified MAC Address, null if not indexed
+   */
+  public static VirtualBoxSlave getSlave(String macAddress) {
+    if (stale) {
+      rebuild();
+    }
+    String nodeName = getNodeName(macAddress);
+    if (null == nodeName) {
+      return null;
+    }
+    Node node = Hudson.getInstance().getNode(nodeName);
+    return node instanceof VirtualBoxSlave ? (VirtualBoxSlave) node : null;
+  }
+
+  /**
+   * @param macAddress MAC Address, with or without separators
+   * @return name of the node whose machine has specified MAC Address in the current index, null if not indexed
+   */
+  static String getNodeName(String macAddress) {
+    String normalized = normalize(macAddress);
+    return null != normalized ? nodeNames.get(normalized) : null;
+  }
+
+  /**
+   * Remembers a MAC Address found without the index.
+   */
+  public static void put(String macAddress, VirtualBoxSlave slave) {
+    if (null != normalize(macAddress)) {
+      remembered.put(normalize(macAddress), slave.getNodeName());
+      nodeNames.put(normalize(macAddress), slave.getNodeName());
+    }
+  }
+
+  /**
+   * Schedules a rebuild of the index on next lookup.
+   */
+  public static void invalidate() {
+    stale = true;
+  }
+
+  private static void rebuild() {
+    stale = false;
+    Map<String, String> index = new ConcurrentHashMap<String, String>();
+    for (Map.Entry<String, String> entry : remembered.entrySet()) {
+      if (Hudson.getInstance().getNode(entry.getValue()) instanceof VirtualBoxSlave) {
+        index.put(entry.getKey(), entry.getValue());
+      } else {
+        remembered.remove(entry.getKey());
+      }
+    }
+    Map<String, VirtualBoxMachine> machines = new HashMap<String, VirtualBoxMachine>();
+    for (Node node : Hudson.getInstance().getNodes()) {
+      if (node instanceof VirtualBoxSlave) {
+        VirtualBoxSlave slave = (VirtualBoxSlave) node;
+        VirtualBoxCloud host = VirtualBoxPlugin.getHost(slave.getHostName());
+        VirtualBoxMachine machine = null != host && null != slave.getVirtualMachineName()
+            ? host.getListedVirtualMachine(slave.getVirtualMachineName()) : null;
+        if (null != machine) {
+          machines.put(slave.getNodeName(), machine);
+        }
+      }
+    }
+    // listed MAC Addresses win over remembered ones
+    index.putAll(index(machines));
+    nodeNames = index;
+  }
+
+  /**
+   * Replaces the index, until next invalidation.
+   *
+   * @param index node names by normalized MAC Address
+   */
+  static void install(Map<String, String> index) {
+    stale = false;
+    nodeNames = new ConcurrentHashMap<String, String>(index);
+  }
+
+  /**
+   * @param machines listed machines by node name
+   * @return node names by normalized MAC Address, without the machines whose MAC Address is unknown
+   */
+  static Map<String, String> index(Map<String, VirtualBoxMachine> machines) {
+    Map<String, String> index = new HashMap<String, String>();
+    for (Map.Entry<String, VirtualBoxMachine> entry : machines.entrySet()) {
+      String macAddress = normalize(entry.getValue().getMacAddress());
+      if (null != macAddress) {
+        index.put(macAddress, entry.getKey());
+      }
+    }
+    return index;
+  }
+
+  /**
+   * @return MAC Address without separators in upper case, null if unknown
+   */
+  static String normalize(String macAddress) {
+    return null != macAddress ? macAddress.replace(":", "").replace("-", "").toUpperCase() : null;
+  }
+
+  /**
+   * Keeps the index in sync with the nodes.
+   */
+  @Extension
+  public static class NodesListener extends ComputerListener {
+    @Override
+    public void onConfigurationChange() {
+      invalidate();
+    }
+  }
+}
@@ -11,10 +11,31 @@ public class VirtualBoxMachine implements Serializable, Comparable<VirtualBoxMac
   private final VirtualBoxCloud host;
   private final String name;
 
+  /**
+   * Resolved by the controls on first use, not part of the identity of the machine.
+   */
+  private volatile String uuid;
+
+  /**
+   * Snapshot of the machine attributes, taken when the host was listed; null if unknown.
+   */
+  private final String state;
+  private final String osTypeId;
+  private final String macAddress;
+
   @DataBoundConstructor
   public VirtualBoxMachine(VirtualBoxCloud host, String name) {
+    this(host, name, null, null, null, null);
+  }
+
+  public VirtualBoxMachine(VirtualBoxCloud host, String name, String uuid, String state, String osTypeId,
+      String macAddress) {
     this.host = host;
     this.name = name;
+    this.uuid = uuid;
+    this.state = state;
+    this.osTypeId = osTypeId;
+    this.macAddress = macAddress;
   }
 
   public VirtualBoxCloud getHost() {
@@ -25,6 +46,38 @@ public class VirtualBoxMachine implements Serializable, Comparable<VirtualBoxMac
     return name;
   }
 
+  /**
+   * @return UUID of this machine on its host, null until resolved
+   */
+  public String getUuid() {
+    return uuid;
+  }
+
+  public void setUuid(String uuid) {
+    this.uuid = uuid;
+  }
+
+  /**
+   * @return state of this machine when its host was listed, null if unknown
+   */
+  public String getState() {
+    return state;
+  }
+
+  /**
+   * @return guest OS type, null if unknown
+   */
+  public String getOsTypeId() {
+    return osTypeId;
+  }
+
+  /**
+   * @return MAC Address of the first network adapter when its host was listed, null if unknown
+   */
+  public String getMacAddress() {
+    return macAddress;
+  }
+
   @Override
   public boolean equals(Object obj) {
     if (this == obj) {
@@ -0,0 +1,37 @@
+package hudson.plugins.virtualbox;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Bounded, least recently used cache of machine handles, keyed by machine UUID.
+ * <p>
+ * Handles are managed object references, only valid within the web session which resolved them,
+ * so there is one cache per web session.
+ * </p>
+ *
+ * @param <M> machine handle
+ */
+final class VirtualBoxMachineCache<M> {
+
+  static final int MAX_SIZE = Integer.getInteger(VirtualBoxMachineCache.class.getName() + ".maxSize", 64);
+
+  private final Map<String, M> machines = new LinkedHashMap<String, M>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<String, M> eldest) {
+      return size() > MAX_SIZE;
+    }
+  };
+
+  synchronized M get(String uuid) {
+    return machines.get(uuid);
+  }
+
+  synchronized void put(String uuid, M machine) {
+    machines.put(uuid, machine);
+  }
+
+  synchronized void invalidate(String uuid) {
+    machines.remove(uuid);
+  }
+}
@@ -0,0 +1,136 @@
+package hudson.plugins.virtualbox;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Listens to machine and session state changes of a VirtualBox host, and wakes up the operations waiting for them.
+ * <p>
+ * Waiters take a sequence number for their machine before reading its state, then wait for the sequence
+ * to move on, so that a change happening between the read and the wait is never missed.
+ * If the listener cannot be registered or stops, waiters fall back to polling at their own interval.
+ * </p>
+ * <p>
+ * Subclasses bind to a version of the VirtualBox API.
+ * </p>
+ */
+abstract class VirtualBoxMachineEvents {
+
+  private static final Logger LOG = Logger.getLogger(VirtualBoxMachineEvents.class.getName());
+
+  /**
+   * Safety net against lost events, while the listener is running.
+   */
+  static final long EVENT_TIMEOUT = TimeUnit.SECONDS.toMillis(10);
+
+  private static final int GET_EVENT_TIMEOUT = 1000;
+
+  private final String hostUrl;
+  private final Map<String, Long> sequences = new HashMap<String, Long>();
+  private volatile boolean listening;
+  private volatile boolean stopped;
+
+  VirtualBoxMachineEvents(String hostUrl) {
+    this.hostUrl = hostUrl;
+  }
+
+  /**
+   * Registers a passive listener for machine and session state changes.
+   */
+  protected abstract void open();
+
+  /**
+   * @param timeout maximum time to wait for an event, in milliseconds
+   * @return id of the machine which changed state, null if no event occurred
+   */
+  protected abstract String nextMachineEvent(int timeout);
+
+  /**
+   * Unregisters the listener, called once listening stopped.
+   */
+  protected abstract void close();
+
+  void start() {
+    Thread thread = new Thread(new Runnable() {
+      public void run() {
+        listen();
+      }
+    }, "VirtualBox events from " + hostUrl);
+    thread.setDaemon(true);
+    thread.start();
+  }
+
+  void stop() {
+    stopped = true;
+  }
+
+  /**
+   * @return current sequence number of specified machine, to be passed to {@link #awaitChange}
+   */
+  synchronized long sequence(String machineId) {
+    Long sequence = sequences.get(machineId);
+    return null != sequence ? sequence : 0;
+  }
+
+  /**
+   * Waits until specified machine changes state, or until the poll interval elapses if no listener is running.
+   * Like the sleeps it replaces, interruptions are ignored.
+   *
+   * @param machineId    machine id, null to simply wait for the poll interval
+   * @param sequence     sequence number taken before the state was last read
+   * @param pollInterval how long to wait when not listening to events, in milliseconds
+   * @return sequence number to pass to the next call, taken before the caller reads the state again
+   */
+  synchronized long awaitChange(String machineId, long sequence, long pollInterval) {
+    boolean eventDriven = listening && null != machineId;
+    long timeout = eventDriven ? EVENT_TIMEOUT : pollInterval;
+    long deadline = System.currentTimeMillis() + timeout;
+    long remaining = timeout;
+    try {
+      while (remaining > 0 && sequence(machineId) == sequence) {
+        wait(remaining);
+        if (eventDriven && !listening) {
+          break; // listener stopped, let the caller poll
+        }
+        remaining = deadline - System.currentTimeMillis();
+      }
+    } catch (InterruptedException e) {}
+    return sequence(machineId);
+  }
+
+  private synchronized void fired(String machineId) {
+    sequences.put(machineId, sequence(machineId) + 1);
+    notifyAll();
+  }
+
+  private void listen() {
+    try {
+      open();
+      listening = true;
+      while (!stopped) {
+        String machineId = nextMachineEvent(GET_EVENT_TIMEOUT);
+        if (null != machineId) {
+          fired(machineId);
+        }
+      }
+    } catch (RuntimeException e) {
+      if (!stopped) {
+        LOG.log(Level.WARNING, "Not listening to VirtualBox events from " + hostUrl + " anymore, falling back to polling", e);
+      }
+    } finally {
+      listening = false;
+      synchronized (this) {
+        // waiters switch to polling
+        notifyAll();
+      }
+      try {
+        close();
+      } catch (RuntimeException e) {
+        // connection is lost anyway
+      }
+    }
+  }
+}
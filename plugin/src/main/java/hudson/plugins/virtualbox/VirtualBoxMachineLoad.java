@@ -0,0 +1,59 @@
+package hudson.plugins.virtualbox;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+/**
+ * Resources used by a running virtual machine, sampled along with the {@link VirtualBoxHostLoad} of its host.
+ */
+@ExportedBean
+public final class VirtualBoxMachineLoad {
+
+  private final String name;
+  private final double cpuLoad;
+  private final long memoryUsed;
+
+  /**
+   * @param name       virtual machine name
+   * @param cpuLoad    CPU load of the machine process, as a share of the host CPU between 0 and 1, NaN if unknown
+   * @param memoryUsed memory used by the machine process, in megabytes, negative if unknown
+   */
+  public VirtualBoxMachineLoad(String name, double cpuLoad, long memoryUsed) {
+    this.name = name;
+    this.cpuLoad = cpuLoad;
+    this.memoryUsed = memoryUsed;
+  }
+
+  @Exported
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * @return CPU load of the machine process between 0 and 1, NaN if unknown
+   */
+  public double getCpuLoad() {
+    return cpuLoad;
+  }
+
+  /**
+   * @return CPU load of the machine process in percents, -1 if unknown
+   */
+  @Exported
+  public int getCpuPercent() {
+    return Double.isNaN(cpuLoad) ? -1 : (int) Math.round(cpuLoad * 100);
+  }
+
+  /**
+   * @return memory used by the machine process, in megabytes, negative if unknown
+   */
+  @Exported
+  public long getMemoryUsed() {
+    return memoryUsed;
+  }
+
+  @Override
+  public String toString() {
+    return name + "{cpuLoad=" + cpuLoad + ", memoryUsed=" + memoryUsed + "MB}";
+  }
+}
@@ -0,0 +1,56 @@
+package hudson.plugins.virtualbox;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * One lock per virtual machine, so that operations on the same machine are serialized
+ * while independent machines of a host can be started and stopped concurrently.
+ * The locks of a host are shared by all its connections.
+ */
+final class VirtualBoxMachineLocks {
+
+  private static final ConcurrentMap<String, VirtualBoxMachineLocks> HOSTS =
+      new ConcurrentHashMap<String, VirtualBoxMachineLocks>();
+
+  private final ConcurrentMap<String, Lock> locks = new ConcurrentHashMap<String, Lock>();
+
+  private VirtualBoxMachineLocks() {
+  }
+
+  /**
+   * @return machine locks of specified host, shared by all its connections
+   */
+  static VirtualBoxMachineLocks forHost(String hostUrl) {
+    VirtualBoxMachineLocks machineLocks = HOSTS.get(hostUrl);
+    if (null == machineLocks) {
+      VirtualBoxMachineLocks newMachineLocks = new VirtualBoxMachineLocks();
+      machineLocks = HOSTS.putIfAbsent(hostUrl, newMachineLocks);
+      if (null == machineLocks) {
+        machineLocks = newMachineLocks;
+      }
+    }
+    return machineLocks;
+  }
+
+  /**
+   * Acquires the lock of specified machine, to be released with {@link Lock#unlock()}.
+   *
+   * @param vbMachine virtual machine
+   * @return acquired lock
+   */
+  Lock lock(VirtualBoxMachine vbMachine) {
+    Lock lock = locks.get(vbMachine.getName());
+    if (null == lock) {
+      Lock newLock = new ReentrantLock();
+      lock = locks.putIfAbsent(vbMachine.getName(), newLock);
+      if (null == lock) {
+        lock = newLock;
+      }
+    }
+    lock.lock();
+    return lock;
+  }
+}
@@ -0,0 +1,102 @@
+package hudson.plugins.virtualbox;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Samples the load of the VirtualBox hosts into their {@link VirtualBoxHostMetrics}.
+ * <p>
+ * Hosts are sampled in parallel within one period, so that a hung host does not delay the samples of the other ones.
+ * A host still not sampled when the next period starts is skipped, its last load expiring meanwhile.
+ * </p>
+ */
+@Extension
+public class VirtualBoxMetricsSampler extends AsyncPeriodicWork {
+  private static final Logger LOG = Logger.getLogger(VirtualBoxMetricsSampler.class.getName());
+
+  /**
+   * Sampling period, set in seconds.
+   */
+  static final long PERIOD = TimeUnit.SECONDS.toMillis(Long.getLong(VirtualBoxMetricsSampler.class.getName() + ".period", 10));
+
+  private static final ExecutorService SAMPLERS = Executors.newCachedThreadPool(new ThreadFactory() {
+    private final AtomicInteger count = new AtomicInteger();
+
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "VirtualBox metrics #" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  /**
+   * Samples by host URL, so that a hung host holds at most one thread.
+   */
+  private final ConcurrentMap<String, Future<?>> samples = new ConcurrentHashMap<String, Future<?>>();
+
+  public VirtualBoxMetricsSampler() {
+    super("VirtualBox metrics");
+  }
+
+  @Override
+  public long getRecurrencePeriod() {
+    return PERIOD;
+  }
+
+  @Override
+  protected void execute(TaskListener listener) throws IOException, InterruptedException {
+    sample(VirtualBoxPlugin.getHosts(), PERIOD);
+  }
+
+  /**
+   * Samples specified hosts in parallel, waiting for them within specified timeout.
+   * Failures are logged, and recorded as unavailable samples.
+   *
+   * @param timeout maximum time to wait for all the hosts, in milliseconds
+   */
+  void sample(Collection<VirtualBoxCloud> hosts, long timeout) throws InterruptedException {
+    Map<Future<?>, VirtualBoxCloud> started = new LinkedHashMap<Future<?>, VirtualBoxCloud>();
+    for (final VirtualBoxCloud host : hosts) {
+      Future<?> previous = samples.get(host.getUrl());
+      if (null != previous && !previous.isDone()) {
+        LOG.log(Level.WARNING, "Skipping {0}, still not sampled", host.getDisplayName());
+        continue;
+      }
+      Future<?> sample = SAMPLERS.submit(new Runnable() {
+        public void run() {
+          host.sampleLoad();
+        }
+      });
+      samples.put(host.getUrl(), sample);
+      started.put(sample, host);
+    }
+
+    long deadline = System.currentTimeMillis() + timeout;
+    for (Map.Entry<Future<?>, VirtualBoxCloud> sample : started.entrySet()) {
+      try {
+        sample.getKey().get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        LOG.log(Level.WARNING, "{0} not sampled within {1} ms", new Object[]{sample.getValue().getDisplayName(), timeout});
+      } catch (ExecutionException e) {
+        LOG.log(Level.WARNING, "Unable to sample the load of " + sample.getValue().getDisplayName(), e.getCause());
+      }
+    }
+  }
+}
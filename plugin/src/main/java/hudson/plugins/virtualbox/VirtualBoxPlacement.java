@@ -0,0 +1,188 @@
+package hudson.plugins.virtualbox;
+
+import hudson.Extension;
+import hudson.ExtensionPoint;
+import hudson.model.Hudson;
+import java.util.List;
+
+/**
+ * Picks the host an agent is provisioned on, among the {@link VirtualBoxCloud} having a template for its label.
+ * The cloud asked by NodeProvisioner only starts agents on its own host, leaving the agents placed on a host asked
+ * after it to that host, see {@link VirtualBoxCloud#provision}.
+ * Implementations are registered with {@link Extension} and selected by their id in the configuration of the cloud.
+ */
+public abstract class VirtualBoxPlacement implements ExtensionPoint {
+
+  public static final String DEFAULT_ID = LeastLoaded.ID;
+
+  /**
+   * @return id stored in the configuration of the cloud
+   */
+  public abstract String getId();
+
+  public abstract String getDisplayName();
+
+  /**
+   * Called once per agent to provision. Candidates on which no machine can be reserved are removed before retrying.
+   *
+   * @param candidates templates matching the label, on the host asked and the ones asked after it, never empty
+   * @return candidate to provision the agent with, null to provision nothing
+   */
+  public abstract Candidate select(List<Candidate> candidates);
+
+  /**
+   * @return all registered placements
+   */
+  public static List<VirtualBoxPlacement> all() {
+    return Hudson.getInstance().getExtensionList(VirtualBoxPlacement.class);
+  }
+
+  /**
+   * @return placement with specified id, the default one if unknown
+   */
+  public static VirtualBoxPlacement get(String id) {
+    VirtualBoxPlacement fallback = null;
+    for (VirtualBoxPlacement placement : all()) {
+      if (placement.getId().equals(id)) {
+        return placement;
+      }
+      if (DEFAULT_ID.equals(placement.getId())) {
+        fallback = placement;
+      }
+    }
+    return null != fallback ? fallback : new LeastLoaded();
+  }
+
+  /**
+   * A template of a host, with the load of the host.
+   */
+  public static final class Candidate {
+    private final VirtualBoxCloud host;
+    private final VirtualBoxTemplate template;
+
+    Candidate(VirtualBoxCloud host, VirtualBoxTemplate template) {
+      this.host = host;
+      this.template = template;
+    }
+
+    public VirtualBoxCloud getHost() {
+      return host;
+    }
+
+    public VirtualBoxTemplate getTemplate() {
+      return template;
+    }
+
+    /**
+     * @return last load of the host sampled by {@link VirtualBoxMetricsSampler},
+     * not available if the host could not be reached or was not sampled recently
+     */
+    public VirtualBoxHostLoad getLoad() {
+      return host.getLoad();
+    }
+
+    /**
+     * @return machines of the host being provisioned, which the sampled load does not account for yet
+     */
+    public int getInFlight() {
+      return host.getProvisioningCount();
+    }
+
+    /**
+     * Sums the CPU load, the used memory and the running machines per processor, each counting about one when busy.
+     *
+     * @return load of the host, higher when busier
+     */
+    public double getScore() {
+      VirtualBoxHostLoad load = getLoad();
+      double cpuLoad = Double.isNaN(load.getCpuLoad()) ? 0 : load.getCpuLoad();
+      return cpuLoad + (1 - load.getFreeMemoryRatio())
+          + (double) (load.getRunningMachines() + getInFlight()) / Math.max(load.getProcessorCount(), 1);
+    }
+
+    @Override
+    public String toString() {
+      return template.getLabelString() + "@" + host.getDisplayName();
+    }
+  }
+
+  /**
+   * Spreads agents, on the host with the lowest {@link Candidate#getScore()}.
+   * Hosts which could not be reached are only used when no host could be.
+   */
+  @Extension
+  public static class LeastLoaded extends VirtualBoxPlacement {
+    public static final String ID = "leastLoaded";
+
+    @Override
+    public String getId() {
+      return ID;
+    }
+
+    @Override
+    public String getDisplayName() {
+      return "Least loaded host";
+    }
+
+    @Override
+    public Candidate select(List<Candidate> candidates) {
+      Candidate best = null;
+      double bestScore = Double.MAX_VALUE;
+      for (Candidate candidate : candidates) {
+        if (!candidate.getLoad().isAvailable()) {
+          continue;
+        }
+        double score = candidate.getScore();
+        if (score < bestScore) {
+          best = candidate;
+          bestScore = score;
+        }
+      }
+      // no load known, keep the order of the configuration
+      return null != best ? best : candidates.get(0);
+    }
+  }
+
+  /**
+   * Packs agents, on the busiest host which still has some free memory and CPU,
+   * so that the other hosts stay idle. Falls back to the least loaded host once all hosts are full.
+   */
+  @Extension
+  public static class BinPacking extends VirtualBoxPlacement {
+    public static final String ID = "binPacking";
+
+    /**
+     * Share of the memory of a host kept free, and CPU load above which a host is full.
+     */
+    private static final double MIN_FREE_MEMORY = 0.1;
+    private static final double MAX_CPU_LOAD = 0.9;
+
+    @Override
+    public String getId() {
+      return ID;
+    }
+
+    @Override
+    public String getDisplayName() {
+      return "Fill one host at a time";
+    }
+
+    @Override
+    public Candidate select(List<Candidate> candidates) {
+      Candidate best = null;
+      double bestScore = -1;
+      for (Candidate candidate : candidates) {
+        VirtualBoxHostLoad load = candidate.getLoad();
+        if (!load.isAvailable() || load.getFreeMemoryRatio() < MIN_FREE_MEMORY || load.getCpuLoad() > MAX_CPU_LOAD) {
+          continue;
+        }
+        double score = candidate.getScore();
+        if (score > bestScore) {
+          best = candidate;
+          bestScore = score;
+        }
+      }
+      return null != best ? best : new LeastLoaded().select(candidates);
+    }
+  }
+}
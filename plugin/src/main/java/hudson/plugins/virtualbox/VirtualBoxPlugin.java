@@ -1,6 +1,7 @@
 package hudson.plugins.virtualbox;
 
 import hudson.Plugin;
+import hudson.model.Failure;
 import hudson.model.Hudson;
 import hudson.model.Node;
 import hudson.slaves.Cloud;
@@ -73,11 +74,20 @@ public class VirtualBoxPlugin extends Plugin {
    * @return all registered {@link VirtualBoxMachine} from specified host, empty list if unknown host
    */
   public static List<VirtualBoxMachine> getDefinedVirtualMachines(String hostName) {
+    return getDefinedVirtualMachines(hostName, false);
+  }
+
+  /**
+   * @param hostName host name
+   * @param refresh  true to list the machines again, false to use the cached list of the host
+   * @return all registered {@link VirtualBoxMachine} from specified host, empty list if unknown host
+   */
+  public static List<VirtualBoxMachine> getDefinedVirtualMachines(String hostName, boolean refresh) {
     VirtualBoxCloud host = getHost(hostName);
     if (host == null) {
       return Collections.emptyList();
     }
-    return host.refreshVirtualMachinesList();
+    return refresh ? host.refreshVirtualMachinesList() : host.getVirtualMachines();
   }
 
   /**
@@ -100,10 +110,10 @@ public class VirtualBoxPlugin extends Plugin {
    * For UI.
    */
   @SuppressWarnings({"UnusedDeclaration", "JavaDoc"})
-  public void doComputerNameValues(StaplerRequest req, StaplerResponse resp, @QueryParameter("hostName") String hostName)
-      throws IOException, ServletException {
+  public void doComputerNameValues(StaplerRequest req, StaplerResponse resp, @QueryParameter("hostName") String hostName,
+      @QueryParameter("refresh") boolean refresh) throws IOException, ServletException {
     ListBoxModel m = new ListBoxModel();
-    List<VirtualBoxMachine> virtualMachines = getDefinedVirtualMachines(hostName);
+    List<VirtualBoxMachine> virtualMachines = getDefinedVirtualMachines(hostName, refresh);
     if (virtualMachines != null && virtualMachines.size() > 0) {
       for (VirtualBoxMachine vm : virtualMachines) {
         m.add(new ListBoxModel.Option(vm.getName(), vm.getName()));
@@ -113,6 +123,15 @@ public class VirtualBoxPlugin extends Plugin {
     m.writeTo(req, resp);
   }
 
+  /**
+   * Rejects an action changing the state of machines unless it is posted, so that following a link cannot run it.
+   */
+  static void requirePost(StaplerRequest req) {
+    if (!"POST".equals(req.getMethod())) {
+      throw new Failure("This action requires a POST request");
+    }
+  }
+
   /**
    * Used for discovering {@link VirtualBoxSlave} with specified MAC Address.
    * HTTP 404 Error will be returned, if slave can't be found.
@@ -132,22 +151,48 @@ public class VirtualBoxPlugin extends Plugin {
   public void doGetSlaveAgent(StaplerRequest req, StaplerResponse resp, @QueryParameter("macAddress") String macAddress)
       throws IOException {
     LOG.log(Level.INFO, "Searching VirtualBox machine with MacAddress {0}", macAddress);
+    VirtualBoxSlave slave = VirtualBoxMacAddressIndex.getSlave(macAddress);
+    if (null == slave) {
+      slave = findSlave(macAddress);
+    }
+    if (null == slave) {
+      resp.sendError(404);
+      return;
+    }
+    String url = Hudson.getInstance().getRootUrl() + "/computer/" + slave.getNodeName() + "/slave-agent.jnlp";
+    LOG.log(Level.INFO, "Found {0} for Mac Address {1}, sending redirect to {2}", new Object[]{slave, macAddress, url});
+    resp.sendRedirect(url);
+  }
+
+  /**
+   * Asks every host for the current MAC Address of its slaves, for MAC Addresses missing from
+   * {@link VirtualBoxMacAddressIndex}, which may have been listed before the network adapter of a machine changed.
+   */
+  private static VirtualBoxSlave findSlave(String macAddress) {
     for (Node node : Hudson.getInstance().getNodes()) {
       if (node instanceof VirtualBoxSlave) {
         VirtualBoxSlave slave = (VirtualBoxSlave) node;
         VirtualBoxMachine vbox = getVirtualBoxMachine(slave.getHostName(), slave.getVirtualMachineName());
+        if (null == vbox) {
+          continue;
+        }
 
-        String vboxMacAddress = VirtualBoxUtils.getMacAddress(vbox, new VirtualBoxSystemLog(LOG, "[VirtualBox] "));
+        String vboxMacAddress;
+        try {
+          vboxMacAddress = VirtualBoxUtils.getMacAddress(vbox, new VirtualBoxSystemLog(LOG, "[VirtualBox] "));
+        } catch (RuntimeException e) {
+          LOG.log(Level.WARNING, "Unable to get MacAddress of " + slave.getNodeName(), e);
+          continue;
+        }
         LOG.log(Level.INFO, "MacAddress for {0} is {1}", new Object[]{slave.getNodeName(), vboxMacAddress});
+        VirtualBoxMacAddressIndex.put(vboxMacAddress, slave);
 
-        if (macAddress.equalsIgnoreCase(vboxMacAddress)) {
-          String url = Hudson.getInstance().getRootUrl() + "/computer/" + slave.getNodeName() + "/slave-agent.jnlp";
-          LOG.log(Level.INFO, "Found {0} for Mac Address {1}, sending redirect to {2}", new Object[]{slave, macAddress, url});
-          resp.sendRedirect(url);
-          return;
+        if (null != vboxMacAddress && null != macAddress
+            && VirtualBoxMacAddressIndex.normalize(macAddress).equals(VirtualBoxMacAddressIndex.normalize(vboxMacAddress))) {
+          return slave;
         }
       }
     }
-    resp.sendError(404);
+    return null;
   }
 }
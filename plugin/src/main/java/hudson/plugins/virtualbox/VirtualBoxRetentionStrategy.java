@@ -0,0 +1,63 @@
+package hudson.plugins.virtualbox;
+
+import hudson.Extension;
+import hudson.model.Descriptor;
+import hudson.model.Hudson;
+import hudson.slaves.RetentionStrategy;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Removes a {@link VirtualBoxSlave} once it has been idle for a while,
+ * which stops its virtual machine with the configured stop mode.
+ * Agents of the warm pool of a template are kept, see {@link VirtualBoxWarmPool}.
+ */
+public class VirtualBoxRetentionStrategy extends RetentionStrategy<VirtualBoxComputer> {
+  private static final Logger LOG = Logger.getLogger(VirtualBoxRetentionStrategy.class.getName());
+
+  private final int idleMinutes;
+
+  @DataBoundConstructor
+  public VirtualBoxRetentionStrategy(int idleMinutes) {
+    this.idleMinutes = idleMinutes;
+  }
+
+  public int getIdleMinutes() {
+    return idleMinutes;
+  }
+
+  @Override
+  public synchronized long check(VirtualBoxComputer computer) {
+    VirtualBoxSlave slave = computer.getNode();
+    if (null == slave || !computer.isIdle() || computer.isConnecting()) {
+      return 1;
+    }
+    long idleMilliseconds = System.currentTimeMillis() - computer.getIdleStartMilliseconds();
+    VirtualBoxCloud host = VirtualBoxPlugin.getHost(slave.getHostName());
+    if (idleMilliseconds > TimeUnit.MINUTES.toMillis(idleMinutes) && (null == host || host.canRetire(slave))) {
+      LOG.log(Level.INFO, "Removing {0}, idle for more than {1} minutes", new Object[]{slave.getNodeName(), idleMinutes});
+      try {
+        Hudson.getInstance().removeNode(slave);
+      } catch (IOException e) {
+        LOG.log(Level.WARNING, "Unable to remove " + slave.getNodeName(), e);
+      }
+    }
+    return 1;
+  }
+
+  @Override
+  public void start(VirtualBoxComputer computer) {
+    computer.connect(false);
+  }
+
+  @Extension
+  public static class DescriptorImpl extends Descriptor<RetentionStrategy<?>> {
+    @Override
+    public String getDisplayName() {
+      return Messages.VirtualBoxRetentionStrategy_displayName();
+    }
+  }
+}
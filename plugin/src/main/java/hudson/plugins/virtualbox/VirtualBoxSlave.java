@@ -27,12 +27,17 @@ public class VirtualBoxSlave extends Slave {
   private final String virtualMachineName;
   private final String virtualMachineType;
   private final String virtualMachineStopMode;
+  private final String snapshotName;
+  private final String readinessProbe;
+  private final String readinessProbeTarget;
+  private final int readinessTimeout;
 
   @DataBoundConstructor
   public VirtualBoxSlave(
       String name, String nodeDescription, String remoteFS, String numExecutors, Mode mode, String labelString,
       ComputerLauncher delegateLauncher, RetentionStrategy retentionStrategy, List<? extends NodeProperty<?>> nodeProperties,
-      String hostName, String virtualMachineName, String virtualMachineType, String virtualMachineStopMode
+      String hostName, String virtualMachineName, String virtualMachineType, String virtualMachineStopMode,
+      String snapshotName, String readinessProbe, String readinessProbeTarget, int readinessTimeout
   ) throws Descriptor.FormException, IOException {
     super(
         name,
@@ -41,7 +46,8 @@ public class VirtualBoxSlave extends Slave {
         numExecutors,
         mode,
         labelString,
-        new VirtualBoxComputerLauncher(delegateLauncher, hostName, virtualMachineName, virtualMachineType, virtualMachineStopMode),
+        new VirtualBoxComputerLauncher(delegateLauncher, hostName, virtualMachineName, virtualMachineType, virtualMachineStopMode,
+            snapshotName, readinessProbe, readinessProbeTarget, readinessTimeout),
         retentionStrategy,
         nodeProperties
     );
@@ -49,6 +55,35 @@ public class VirtualBoxSlave extends Slave {
     this.virtualMachineName = virtualMachineName;
     this.virtualMachineType = virtualMachineType;
     this.virtualMachineStopMode = virtualMachineStopMode;
+    this.snapshotName = snapshotName;
+    this.readinessProbe = readinessProbe;
+    this.readinessProbeTarget = readinessProbeTarget;
+    this.readinessTimeout = readinessTimeout;
+  }
+
+  public VirtualBoxSlave(
+      String name, String nodeDescription, String remoteFS, String numExecutors, Mode mode, String labelString,
+      ComputerLauncher delegateLauncher, RetentionStrategy retentionStrategy, List<? extends NodeProperty<?>> nodeProperties,
+      String hostName, String virtualMachineName, String virtualMachineType, String virtualMachineStopMode
+  ) throws Descriptor.FormException, IOException {
+    this(
+        name,
+        nodeDescription,
+        remoteFS,
+        numExecutors,
+        mode,
+        labelString,
+        delegateLauncher,
+        retentionStrategy,
+        nodeProperties,
+        hostName,
+        virtualMachineName,
+        virtualMachineType,
+        virtualMachineStopMode,
+        null,
+        VirtualBoxComputerLauncher.PROBE_DELEGATE,
+        null,
+        VirtualBoxComputerLauncher.DEFAULT_READINESS_TIMEOUT);
   }
 
   public VirtualBoxSlave(
@@ -99,12 +134,40 @@ public class VirtualBoxSlave extends Slave {
   }
 
   /**
-   * @return type of stop mode for virtual machine, can be powerdown or pause
+   * @return type of stop mode for virtual machine, can be powerdown, pause or restore
    */
   public String getVirtualMachineStopMode() {
     return virtualMachineStopMode;
   }
 
+  /**
+   * @return snapshot restored by the restore stop mode, current snapshot if null
+   */
+  public String getSnapshotName() {
+    return snapshotName;
+  }
+
+  /**
+   * @return readiness probe, can be delegate, tcp or guestProperty
+   */
+  public String getReadinessProbe() {
+    return getLauncher().getReadinessProbe();
+  }
+
+  /**
+   * @return host:port for the TCP probe, property name for the guest property probe
+   */
+  public String getReadinessProbeTarget() {
+    return getLauncher().getReadinessProbeTarget();
+  }
+
+  /**
+   * @return seconds given to the machine to accept the secondary launcher
+   */
+  public int getReadinessTimeout() {
+    return getLauncher().getReadinessTimeout();
+  }
+
   @Override
   public VirtualBoxComputerLauncher getLauncher() {
     return (VirtualBoxComputerLauncher) super.getLauncher();
@@ -167,6 +230,18 @@ public class VirtualBoxSlave extends Slave {
       }
       return FormValidation.ok();
     }
+
+    /**
+     * For UI.
+     */
+    public FormValidation doCheckReadinessProbeTarget(@QueryParameter String value,
+        @QueryParameter String readinessProbe) {
+      if (VirtualBoxComputerLauncher.PROBE_TCP.equals(readinessProbe)
+          && null == VirtualBoxComputerLauncher.parseTcpTarget(value)) {
+        return FormValidation.error("Expected host:port, the stage 2 launcher is waited for instead");
+      }
+      return FormValidation.ok();
+    }
   }
 
 }
@@ -0,0 +1,268 @@
+package hudson.plugins.virtualbox;
+
+import hudson.Extension;
+import hudson.Util;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.Label;
+import hudson.model.Node;
+import hudson.model.labels.LabelAtom;
+import hudson.slaves.JNLPLauncher;
+import hudson.slaves.NodeProperty;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+/**
+ * Recipe used by {@link VirtualBoxCloud} to provision a {@link VirtualBoxSlave} for a label,
+ * from one of the listed virtual machines of the host.
+ * <p>
+ * When a snapshot is specified, agents run on linked clones of the first listed machine instead,
+ * which are created from that snapshot on demand and deleted once their agent is removed.
+ * </p>
+ */
+public class VirtualBoxTemplate extends AbstractDescribableImpl<VirtualBoxTemplate> {
+
+  public static final int DEFAULT_INSTANCE_CAP = 1;
+
+  public static final int DEFAULT_IDLE_MINUTES = 10;
+
+  private final String labelString;
+
+  /**
+   * Names of the virtual machines which can run the agents of this template, separated by whitespace or commas.
+   */
+  private final String virtualMachineNames;
+
+  /**
+   * Snapshot of the first listed machine to create linked clones from, null to use the listed machines.
+   */
+  private final String snapshotName;
+
+  private final String virtualMachineType;
+  private final String virtualMachineStopMode;
+  private final String remoteFS;
+  private final int numExecutors;
+
+  /**
+   * Maximum number of agents of this template running at the same time.
+   */
+  private final int instanceCap;
+
+  /**
+   * Minutes after which an idle agent of this template is removed and its machine stopped.
+   */
+  private final int idleMinutes;
+
+  /**
+   * Number of started and idle agents kept ready for the jobs of this template, see {@link VirtualBoxWarmPool}.
+   */
+  private final int minIdle;
+
+  private transient Set<LabelAtom> labelSet;
+
+  @DataBoundConstructor
+  public VirtualBoxTemplate(String labelString, String virtualMachineNames, String snapshotName,
+      String virtualMachineType, String virtualMachineStopMode, String remoteFS, int numExecutors, int instanceCap,
+      int idleMinutes, int minIdle) {
+    this.labelString = Util.fixNull(labelString);
+    this.virtualMachineNames = Util.fixNull(virtualMachineNames);
+    this.snapshotName = Util.fixEmptyAndTrim(snapshotName);
+    this.virtualMachineType = virtualMachineType;
+    this.virtualMachineStopMode = virtualMachineStopMode;
+    this.remoteFS = remoteFS;
+    this.numExecutors = numExecutors;
+    this.instanceCap = instanceCap;
+    this.idleMinutes = idleMinutes;
+    this.minIdle = minIdle;
+    readResolve();
+  }
+
+  protected Object readResolve() {
+    labelSet = Label.parse(labelString);
+    return this;
+  }
+
+  /**
+   * @param label requested label, null for jobs which can run anywhere
+   * @return true if agents of this template have specified label
+   */
+  public boolean matches(Label label) {
+    return null == label || label.matches(labelSet);
+  }
+
+  /**
+   * @return names of the virtual machines which can run the agents of this template
+   */
+  public List<String> getVirtualMachineNameList() {
+    String names = Util.fixEmptyAndTrim(virtualMachineNames);
+    if (null == names) {
+      return Collections.emptyList();
+    }
+    List<String> result = new ArrayList<String>();
+    for (String name : names.split("[\\s,]+")) {
+      result.add(name);
+    }
+    return result;
+  }
+
+  /**
+   * @return true if agents of this template run on linked clones
+   */
+  public boolean isLinkedClone() {
+    return null != snapshotName;
+  }
+
+  /**
+   * @return machine the linked clones of this template are created from, null if none is listed
+   */
+  public String getBaseVirtualMachineName() {
+    List<String> names = getVirtualMachineNameList();
+    return names.isEmpty() ? null : names.get(0);
+  }
+
+  /**
+   * @return names of the machines agents of this template can run on, at most {@link #getInstanceCap()} clones
+   */
+  public List<String> getInstanceNames() {
+    if (!isLinkedClone()) {
+      return getVirtualMachineNameList();
+    }
+    String base = getBaseVirtualMachineName();
+    if (null == base) {
+      return Collections.emptyList();
+    }
+    List<String> result = new ArrayList<String>(getInstanceCap());
+    for (int i = 1; i <= getInstanceCap(); i++) {
+      result.add(getClonePrefix(base) + i);
+    }
+    return result;
+  }
+
+  /**
+   * @return true if specified machine is a linked clone created for this template, whatever the current instance cap
+   */
+  public boolean isClone(String virtualMachineName) {
+    String base = getBaseVirtualMachineName();
+    if (!isLinkedClone() || null == base || null == virtualMachineName
+        || !virtualMachineName.startsWith(getClonePrefix(base))) {
+      return false;
+    }
+    String index = virtualMachineName.substring(getClonePrefix(base).length());
+    if (index.length() == 0) {
+      return false;
+    }
+    for (int i = 0; i < index.length(); i++) {
+      if (!Character.isDigit(index.charAt(i))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * @return true if agents of this template can run on specified machine
+   */
+  public boolean isInstance(String virtualMachineName) {
+    return isLinkedClone() ? isClone(virtualMachineName) : getVirtualMachineNameList().contains(virtualMachineName);
+  }
+
+  private static String getClonePrefix(String base) {
+    return base + "-clone-";
+  }
+
+  /**
+   * Agents of this template register through {@link VirtualBoxPlugin#doGetSlaveAgent}, once their machine is up.
+   *
+   * @param host               host of the machine
+   * @param virtualMachineName machine running the agent, which also names the agent
+   * @return new agent, not added to Hudson yet
+   */
+  public VirtualBoxSlave createSlave(VirtualBoxCloud host, String virtualMachineName)
+      throws Descriptor.FormException, IOException {
+    return new VirtualBoxSlave(
+        virtualMachineName,
+        "Provisioned by " + host.getDisplayName() + " for " + labelString,
+        remoteFS,
+        String.valueOf(getNumExecutors()),
+        Node.Mode.NORMAL,
+        labelString,
+        new JNLPLauncher(),
+        new VirtualBoxRetentionStrategy(getIdleMinutes()),
+        Collections.<NodeProperty<?>>emptyList(),
+        host.getDisplayName(),
+        virtualMachineName,
+        virtualMachineType,
+        // linked clones are deleted after use, saving their state would be wasted
+        isLinkedClone() ? "powerdown" : virtualMachineStopMode);
+  }
+
+  public String getLabelString() {
+    return labelString;
+  }
+
+  public String getVirtualMachineNames() {
+    return virtualMachineNames;
+  }
+
+  public String getSnapshotName() {
+    return snapshotName;
+  }
+
+  /**
+   * @return type of virtual machine, can be headless, vrdp, gui, or sdl
+   */
+  public String getVirtualMachineType() {
+    return virtualMachineType;
+  }
+
+  /**
+   * @return type of stop mode for virtual machine, can be powerdown, pause or restore
+   */
+  public String getVirtualMachineStopMode() {
+    return virtualMachineStopMode;
+  }
+
+  public String getRemoteFS() {
+    return remoteFS;
+  }
+
+  /**
+   * @return number of executors of each agent, at least one
+   */
+  public int getNumExecutors() {
+    return numExecutors > 0 ? numExecutors : 1;
+  }
+
+  /**
+   * @return maximum number of agents of this template running at the same time
+   */
+  public int getInstanceCap() {
+    return instanceCap > 0 ? instanceCap : DEFAULT_INSTANCE_CAP;
+  }
+
+  /**
+   * @return minutes after which an idle agent of this template is removed
+   */
+  public int getIdleMinutes() {
+    return idleMinutes > 0 ? idleMinutes : DEFAULT_IDLE_MINUTES;
+  }
+
+  /**
+   * @return number of started and idle agents kept ready for the jobs of this template
+   */
+  public int getMinIdle() {
+    return minIdle;
+  }
+
+  @Extension
+  public static final class DescriptorImpl extends Descriptor<VirtualBoxTemplate> {
+    @Override
+    public String getDisplayName() {
+      return Messages.VirtualBoxTemplate_displayName();
+    }
+  }
+}
@@ -0,0 +1,319 @@
+package hudson.plugins.virtualbox;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Records the latency of every call to a {@link VirtualBoxControl} in the {@link VirtualBoxLatencies} of its host.
+ * Calls returning a non-zero result code count as errors, like the ones which throw.
+ * <p>
+ * Also counts the calls in flight, so that a control dropped from its {@link VirtualBoxControlPool} is disconnected
+ * only once the calls still using it have returned. A call arriving once it is retired and idle is run on the current
+ * control of the host instead.
+ * </p>
+ */
+final class VirtualBoxTimedControl implements VirtualBoxControl {
+
+  /**
+   * Flag of {@link #state} set once retired.
+   */
+  private static final int RETIRED = 1 << 30;
+
+  private final VirtualBoxControl control;
+  private final VirtualBoxCloud host;
+  private final VirtualBoxLatencies latencies;
+
+  /**
+   * Number of calls in flight, and {@link #RETIRED} flag, changed together so that no call can start
+   * on this control once it is retired and idle.
+   */
+  private final AtomicInteger state = new AtomicInteger();
+
+  VirtualBoxTimedControl(VirtualBoxControl control, VirtualBoxCloud host) {
+    this.control = control;
+    this.host = host;
+    this.latencies = VirtualBoxLatencies.forHost(host.getUrl());
+  }
+
+  /**
+   * Disconnects this control in the background, as soon as no call is using it any more.
+   */
+  void retire() {
+    int current;
+    do {
+      current = state.get();
+      if (0 != (current & RETIRED)) {
+        return;
+      }
+    } while (!state.compareAndSet(current, current | RETIRED));
+    if (0 == current) {
+      VirtualBoxUtils.disconnectLater(this);
+    }
+  }
+
+  /**
+   * @return false if this control is retired and idle, so disconnected or about to be
+   */
+  private boolean enter() {
+    int current;
+    do {
+      current = state.get();
+      if (RETIRED == current) {
+        return false;
+      }
+    } while (!state.compareAndSet(current, current + 1));
+    return true;
+  }
+
+  private void exit(String operation, long start, boolean failed) {
+    latencies.record(operation, start, failed);
+    if (RETIRED == state.decrementAndGet()) {
+      VirtualBoxUtils.disconnectLater(this);
+    }
+  }
+
+  /**
+   * @return current control of the host, for a call arriving once this control is retired and idle
+   */
+  private VirtualBoxControl successor(VirtualBoxLogger log) {
+    return VirtualBoxUtils.getVboxControl(host, log);
+  }
+
+  public long startVm(VirtualBoxMachine machine, String virtualMachineType, VirtualBoxLogger log) {
+    if (!enter()) {
+      return successor(log).startVm(machine, virtualMachineType, log);
+    }
+    long start = System.nanoTime();
+    long result = -1;
+    try {
+      result = control.startVm(machine, virtualMachineType, log);
+      return result;
+    } finally {
+      exit("startVm", start, 0 != result);
+    }
+  }
+
+  public long startVm(VirtualBoxMachine machine, String virtualMachineType, String snapshotName, VirtualBoxLogger log) {
+    if (!enter()) {
+      return successor(log).startVm(machine, virtualMachineType, snapshotName, log);
+    }
+    long start = System.nanoTime();
+    long result = -1;
+    try {
+      result = control.startVm(machine, virtualMachineType, snapshotName, log);
+      return result;
+    } finally {
+      exit("startVm", start, 0 != result);
+    }
+  }
+
+  public long stopVm(VirtualBoxMachine machine, String virtualMachineStopMode, VirtualBoxLogger log) {
+    if (!enter()) {
+      return successor(log).stopVm(machine, virtualMachineStopMode, log);
+    }
+    long start = System.nanoTime();
+    long result = -1;
+    try {
+      result = control.stopVm(machine, virtualMachineStopMode, log);
+      return result;
+    } finally {
+      exit("stopVm", start, 0 != result);
+    }
+  }
+
+  public Map<VirtualBoxMachine, Long> startVms(Collection<VirtualBoxMachine> machines, String virtualMachineType,
+      VirtualBoxLogger log) {
+    if (!enter()) {
+      return successor(log).startVms(machines, virtualMachineType, log);
+    }
+    long start = System.nanoTime();
+    Map<VirtualBoxMachine, Long> result = null;
+    try {
+      result = control.startVms(machines, virtualMachineType, log);
+      return result;
+    } finally {
+      exit("startVms", start, null == result || anyFailed(result));
+    }
+  }
+
+  public Map<VirtualBoxMachine, Long> stopVms(Collection<VirtualBoxMachine> machines, String virtualMachineStopMode,
+      VirtualBoxLogger log) {
+    if (!enter()) {
+      return successor(log).stopVms(machines, virtualMachineStopMode, log);
+    }
+    long start = System.nanoTime();
+    Map<VirtualBoxMachine, Long> result = null;
+    try {
+      result = control.stopVms(machines, virtualMachineStopMode, log);
+      return result;
+    } finally {
+      exit("stopVms", start, null == result || anyFailed(result));
+    }
+  }
+
+  private static boolean anyFailed(Map<VirtualBoxMachine, Long> results) {
+    for (Long result : results.values()) {
+      if (0 != result) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  public long restoreSnapshot(VirtualBoxMachine machine, String snapshotName, VirtualBoxLogger log) {
+    if (!enter()) {
+      return successor(log).restoreSnapshot(machine, snapshotName, log);
+    }
+    long start = System.nanoTime();
+    long result = -1;
+    try {
+      result = control.restoreSnapshot(machine, snapshotName, log);
+      return result;
+    } finally {
+      exit("restoreSnapshot", start, 0 != result);
+    }
+  }
+
+  public long takeSnapshot(VirtualBoxMachine machine, String snapshotName, String description, VirtualBoxLogger log) {
+    if (!enter()) {
+      return successor(log).takeSnapshot(machine, snapshotName, description, log);
+    }
+    long start = System.nanoTime();
+    long result = -1;
+    try {
+      result = control.takeSnapshot(machine, snapshotName, description, log);
+      return result;
+    } finally {
+      exit("takeSnapshot", start, 0 != result);
+    }
+  }
+
+  public List<VirtualBoxMachine> getMachines(VirtualBoxCloud host, VirtualBoxLogger log) {
+    if (!enter()) {
+      return successor(log).getMachines(host, log);
+    }
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      List<VirtualBoxMachine> result = control.getMachines(host, log);
+      failed = false;
+      return result;
+    } finally {
+      exit("getMachines", start, failed);
+    }
+  }
+
+  public VirtualBoxHostLoad getHostLoad(VirtualBoxLogger log) {
+    if (!enter()) {
+      return successor(log).getHostLoad(log);
+    }
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      VirtualBoxHostLoad result = control.getHostLoad(log);
+      failed = false;
+      return result;
+    } finally {
+      exit("getHostLoad", start, failed);
+    }
+  }
+
+  public String getMacAddress(VirtualBoxMachine machine, VirtualBoxLogger log) {
+    if (!enter()) {
+      return successor(log).getMacAddress(machine, log);
+    }
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      String result = control.getMacAddress(machine, log);
+      failed = false;
+      return result;
+    } finally {
+      exit("getMacAddress", start, failed);
+    }
+  }
+
+  public String getGuestProperty(VirtualBoxMachine machine, String property, VirtualBoxLogger log) {
+    if (!enter()) {
+      return successor(log).getGuestProperty(machine, property, log);
+    }
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      String result = control.getGuestProperty(machine, property, log);
+      failed = false;
+      return result;
+    } finally {
+      exit("getGuestProperty", start, failed);
+    }
+  }
+
+  public long cloneVm(VirtualBoxMachine machine, String snapshotName, String cloneName, VirtualBoxLogger log) {
+    if (!enter()) {
+      return successor(log).cloneVm(machine, snapshotName, cloneName, log);
+    }
+    long start = System.nanoTime();
+    long result = -1;
+    try {
+      result = control.cloneVm(machine, snapshotName, cloneName, log);
+      return result;
+    } finally {
+      exit("cloneVm", start, 0 != result);
+    }
+  }
+
+  public long unregisterVm(VirtualBoxMachine machine, VirtualBoxLogger log) {
+    if (!enter()) {
+      return successor(log).unregisterVm(machine, log);
+    }
+    long start = System.nanoTime();
+    long result = -1;
+    try {
+      result = control.unregisterVm(machine, log);
+      return result;
+    } finally {
+      exit("unregisterVm", start, 0 != result);
+    }
+  }
+
+  public long deleteVm(VirtualBoxMachine machine, VirtualBoxLogger log) {
+    if (!enter()) {
+      return successor(log).deleteVm(machine, log);
+    }
+    long start = System.nanoTime();
+    long result = -1;
+    try {
+      result = control.deleteVm(machine, log);
+      return result;
+    } finally {
+      exit("deleteVm", start, 0 != result);
+    }
+  }
+
+  public void disconnect() {
+    long start = System.nanoTime();
+    boolean failed = true;
+    try {
+      control.disconnect();
+      failed = false;
+    } finally {
+      latencies.record("disconnect", start, failed);
+    }
+  }
+
+  public boolean isConnected() {
+    if (!enter()) {
+      return false;
+    }
+    long start = System.nanoTime();
+    boolean connected = false;
+    try {
+      connected = control.isConnected();
+      return connected;
+    } finally {
+      exit("isConnected", start, !connected);
+    }
+  }
+}
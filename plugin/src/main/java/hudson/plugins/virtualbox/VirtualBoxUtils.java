@@ -3,9 +3,25 @@ package hudson.plugins.virtualbox;
 
 import com.sun.xml.ws.commons.virtualbox_3_1.IVirtualBox;
 import com.sun.xml.ws.commons.virtualbox_3_1.IWebsessionManager;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * @author Mihai Serban
@@ -14,26 +30,251 @@ public final class VirtualBoxUtils {
 
   // public methods
   public static long startVm(VirtualBoxMachine machine, String virtualMachineType, VirtualBoxLogger log) {
-    return getVboxControl(machine.getHost(), log).startVm(machine, virtualMachineType, log);
+    VirtualBoxControl vboxControl = getVboxControl(machine.getHost(), log);
+    try {
+      return vboxControl.startVm(machine, virtualMachineType, log);
+    } catch (RuntimeException e) {
+      connectionFailed(machine.getHost(), vboxControl);
+      throw e;
+    }
+  }
+
+  public static long startVm(VirtualBoxMachine machine, String virtualMachineType, String snapshotName,
+      VirtualBoxLogger log) {
+    VirtualBoxControl vboxControl = getVboxControl(machine.getHost(), log);
+    try {
+      return vboxControl.startVm(machine, virtualMachineType, snapshotName, log);
+    } catch (RuntimeException e) {
+      connectionFailed(machine.getHost(), vboxControl);
+      throw e;
+    }
+  }
+
+  /**
+   * Starts specified virtual machine without blocking the caller.
+   * Operations are run on a bounded executor dedicated to the host of the machine.
+   *
+   * @return result code of {@link #startVm}, available once the machine is started
+   */
+  public static Future<Long> startVmAsync(final VirtualBoxMachine machine, final String virtualMachineType,
+      final String snapshotName, final VirtualBoxLogger log) {
+    return getExecutor(machine.getHost()).submit(new Callable<Long>() {
+      public Long call() {
+        return startVm(machine, virtualMachineType, snapshotName, log);
+      }
+    });
   }
 
   public static long stopVm(VirtualBoxMachine machine, String virtualMachineStopMode, VirtualBoxLogger log) {
-    return getVboxControl(machine.getHost(), log).stopVm(machine, virtualMachineStopMode, log);
+    VirtualBoxControl vboxControl = getVboxControl(machine.getHost(), log);
+    try {
+      return vboxControl.stopVm(machine, virtualMachineStopMode, log);
+    } catch (RuntimeException e) {
+      connectionFailed(machine.getHost(), vboxControl);
+      throw e;
+    }
+  }
+
+  /**
+   * Starts specified machines of a host together, launching all of them before waiting for any.
+   *
+   * @return result code of every machine
+   */
+  public static Map<VirtualBoxMachine, Long> startVms(VirtualBoxCloud host, Collection<VirtualBoxMachine> machines,
+      String virtualMachineType, VirtualBoxLogger log) {
+    VirtualBoxControl vboxControl = getVboxControl(host, log);
+    try {
+      return vboxControl.startVms(machines, virtualMachineType, log);
+    } catch (RuntimeException e) {
+      connectionFailed(host, vboxControl);
+      throw e;
+    }
+  }
+
+  /**
+   * Stops specified machines of a host together, powering down or saving all of them before waiting for any.
+   *
+   * @return result code of every machine
+   */
+  public static Map<VirtualBoxMachine, Long> stopVms(VirtualBoxCloud host, Collection<VirtualBoxMachine> machines,
+      String virtualMachineStopMode, VirtualBoxLogger log) {
+    VirtualBoxControl vboxControl = getVboxControl(host, log);
+    try {
+      return vboxControl.stopVms(machines, virtualMachineStopMode, log);
+    } catch (RuntimeException e) {
+      connectionFailed(host, vboxControl);
+      throw e;
+    }
+  }
+
+  public static long restoreSnapshot(VirtualBoxMachine machine, String snapshotName, VirtualBoxLogger log) {
+    VirtualBoxControl vboxControl = getVboxControl(machine.getHost(), log);
+    try {
+      return vboxControl.restoreSnapshot(machine, snapshotName, log);
+    } catch (RuntimeException e) {
+      connectionFailed(machine.getHost(), vboxControl);
+      throw e;
+    }
+  }
+
+  public static long takeSnapshot(VirtualBoxMachine machine, String snapshotName, String description,
+      VirtualBoxLogger log) {
+    VirtualBoxControl vboxControl = getVboxControl(machine.getHost(), log);
+    try {
+      return vboxControl.takeSnapshot(machine, snapshotName, description, log);
+    } catch (RuntimeException e) {
+      connectionFailed(machine.getHost(), vboxControl);
+      throw e;
+    }
   }
 
   public static List<VirtualBoxMachine> getMachines(VirtualBoxCloud host, VirtualBoxLogger log) {
-    return getVboxControl(host, log).getMachines(host, log);
+    VirtualBoxControl vboxControl = getVboxControl(host, log);
+    try {
+      return vboxControl.getMachines(host, log);
+    } catch (RuntimeException e) {
+      connectionFailed(host, vboxControl);
+      throw e;
+    }
+  }
+
+  public static VirtualBoxHostLoad getHostLoad(VirtualBoxCloud host, VirtualBoxLogger log) {
+    VirtualBoxControl vboxControl = getVboxControl(host, log);
+    try {
+      return vboxControl.getHostLoad(log);
+    } catch (RuntimeException e) {
+      connectionFailed(host, vboxControl);
+      throw e;
+    }
   }
 
   public static String getMacAddress(VirtualBoxMachine machine, VirtualBoxLogger log) {
-    return getVboxControl(machine.getHost(), log).getMacAddress(machine, log);
+    VirtualBoxControl vboxControl = getVboxControl(machine.getHost(), log);
+    try {
+      return vboxControl.getMacAddress(machine, log);
+    } catch (RuntimeException e) {
+      connectionFailed(machine.getHost(), vboxControl);
+      throw e;
+    }
+  }
+
+  public static String getGuestProperty(VirtualBoxMachine machine, String property, VirtualBoxLogger log) {
+    VirtualBoxControl vboxControl = getVboxControl(machine.getHost(), log);
+    try {
+      return vboxControl.getGuestProperty(machine, property, log);
+    } catch (RuntimeException e) {
+      connectionFailed(machine.getHost(), vboxControl);
+      throw e;
+    }
+  }
+
+  public static long cloneVm(VirtualBoxMachine machine, String snapshotName, String cloneName, VirtualBoxLogger log) {
+    VirtualBoxControl vboxControl = getVboxControl(machine.getHost(), log);
+    try {
+      return vboxControl.cloneVm(machine, snapshotName, cloneName, log);
+    } catch (RuntimeException e) {
+      connectionFailed(machine.getHost(), vboxControl);
+      throw e;
+    }
+  }
+
+  public static long unregisterVm(VirtualBoxMachine machine, VirtualBoxLogger log) {
+    VirtualBoxControl vboxControl = getVboxControl(machine.getHost(), log);
+    try {
+      return vboxControl.unregisterVm(machine, log);
+    } catch (RuntimeException e) {
+      connectionFailed(machine.getHost(), vboxControl);
+      throw e;
+    }
+  }
+
+  public static long deleteVm(VirtualBoxMachine machine, VirtualBoxLogger log) {
+    VirtualBoxControl vboxControl = getVboxControl(machine.getHost(), log);
+    try {
+      return vboxControl.deleteVm(machine, log);
+    } catch (RuntimeException e) {
+      connectionFailed(machine.getHost(), vboxControl);
+      throw e;
+    }
+  }
+
+  /**
+   * Lists the machines of specified host over a connection of its own, logged off right after,
+   * so that checking the settings of a host does not leave a pool of connections behind.
+   */
+  public static List<VirtualBoxMachine> testConnection(VirtualBoxCloud host, VirtualBoxLogger log) {
+    VirtualBoxControl vboxControl = CONNECTOR.connect(host, log);
+    try {
+      return vboxControl.getMachines(host, log);
+    } finally {
+      disconnectLater(vboxControl);
+    }
   }
 
+  /**
+   * Checks the cached connections to specified host, reconnecting the lost ones.
+   */
+  public static void keepAlive(VirtualBoxCloud host, VirtualBoxLogger log) {
+    VirtualBoxControlPool pool = vboxControls.get(host.toString());
+    if (null != pool) {
+      pool.keepAlive(host, log);
+    }
+  }
+
+  /**
+   * Logs off from all the hosts in parallel, within {@link #DISCONNECT_TIMEOUT}.
+   */
   public static void disconnectAll() {
-    for (Map.Entry<String, VirtualBoxControl> entry: vboxControls.entrySet()) {
-      entry.getValue().disconnect();
+    disconnectAll(DISCONNECT_TIMEOUT);
+  }
+
+  /**
+   * Logs off from all the hosts in parallel. Web sessions still being logged off after specified timeout
+   * are abandoned to vboxwebsrv, which expires them, so that a hung host cannot hold up the shutdown of Jenkins.
+   *
+   * @param timeout maximum time to wait for all the hosts, in milliseconds
+   */
+  static void disconnectAll(long timeout) {
+    Map<Future<?>, String> disconnects = new LinkedHashMap<Future<?>, String>();
+    for (Map.Entry<String, VirtualBoxControlPool> entry: vboxControls.entrySet()) {
+      for (VirtualBoxControl vboxControl : entry.getValue().detachAll()) {
+        disconnects.put(disconnectLater(vboxControl), entry.getKey());
+      }
     }
     vboxControls.clear();
+    for (ExecutorService executor : executors.values()) {
+      executor.shutdown();
+    }
+    executors.clear();
+
+    long deadline = System.currentTimeMillis() + timeout;
+    for (Map.Entry<Future<?>, String> disconnect : disconnects.entrySet()) {
+      try {
+        disconnect.getKey().get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        LOG.log(Level.WARNING, "Abandoning web sessions of {0}, not logged off within {1} ms",
+            new Object[]{disconnect.getValue(), timeout});
+        disconnect.getKey().cancel(true);
+      } catch (ExecutionException e) {
+        LOG.log(Level.WARNING, "Unable to log off from " + disconnect.getValue(), e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        LOG.log(Level.WARNING, "Interrupted while logging off from VirtualBox hosts");
+        return;
+      }
+    }
+  }
+
+  /**
+   * Logs off from the host of specified control in the background, so that a hung host cannot hold up the caller.
+   * This also stops the thread listening to the events of the control.
+   */
+  static Future<?> disconnectLater(final VirtualBoxControl vboxControl) {
+    return DISCONNECTOR.submit(new Runnable() {
+      public void run() {
+        vboxControl.disconnect();
+      }
+    });
   }
 
   // private methods
@@ -41,52 +282,183 @@ public final class VirtualBoxUtils {
   }
 
   /**
-   * Cache connections to VirtualBox hosts
-   * TODO: keep the connections alive with a noop
+   * Cache connections to VirtualBox hosts, one pool per host, kept alive by {@link VirtualBoxKeepAlive}
+   */
+  private static final ConcurrentMap<String, VirtualBoxControlPool> vboxControls = new ConcurrentHashMap<String, VirtualBoxControlPool>();
+
+  private static final Logger LOG = Logger.getLogger(VirtualBoxUtils.class.getName());
+
+  private static final ExecutorService DISCONNECTOR = Executors.newCachedThreadPool(new ThreadFactory() {
+    private final AtomicInteger count = new AtomicInteger();
+
+    public Thread newThread(Runnable r) {
+      Thread thread = new Thread(r, "VirtualBox disconnect #" + count.incrementAndGet());
+      thread.setDaemon(true);
+      return thread;
+    }
+  });
+
+  /**
+   * Maximum time given to all the hosts to log off when the plugin stops, in milliseconds.
+   */
+  static final long DISCONNECT_TIMEOUT = Long.getLong(VirtualBoxUtils.class.getName() + ".disconnectTimeout", 10000);
+
+  /**
+   * Maximum number of asynchronous operations running at the same time against one host.
+   */
+  private static final int ASYNC_THREADS = Integer.getInteger(VirtualBoxUtils.class.getName() + ".asyncThreads", 4);
+
+  private static final ConcurrentMap<String, ExecutorService> executors = new ConcurrentHashMap<String, ExecutorService>();
+
+  private static ExecutorService getExecutor(final VirtualBoxCloud host) {
+    ExecutorService executor = executors.get(host.toString());
+    if (null != executor) {
+      return executor;
+    }
+    ThreadPoolExecutor newExecutor = new ThreadPoolExecutor(ASYNC_THREADS, ASYNC_THREADS, 60, TimeUnit.SECONDS,
+        new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+          private final AtomicInteger count = new AtomicInteger();
+
+          public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "VirtualBox operations on " + host.getUrl() + " #" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    newExecutor.allowCoreThreadTimeOut(true);
+    executor = executors.putIfAbsent(host.toString(), newExecutor);
+    if (null != executor) {
+      newExecutor.shutdown();
+      return executor;
+    }
+    return newExecutor;
+  }
+
+  /**
+   * Opens all the connections of the pool of specified host.
+   */
+  static void connectAll(VirtualBoxCloud host, VirtualBoxLogger log) {
+    getVboxControlPool(host).connectAll(host, log);
+  }
+
+  /**
+   * @return VirtualBox version of specified host, null if not connected yet
+   */
+  static String getVersion(VirtualBoxCloud host) {
+    return versions.get(host.toString());
+  }
+
+  /**
+   * Forgets the version of specified host, which may have been upgraded while the connection was lost.
    */
-  private static HashMap<String, VirtualBoxControl> vboxControls = new HashMap<String, VirtualBoxControl>();
+  static void forgetVersion(VirtualBoxCloud host) {
+    versions.remove(host.toString());
+  }
+
+  static VirtualBoxControl getVboxControl(VirtualBoxCloud host, VirtualBoxLogger log) {
+    return getVboxControlPool(host).get(host, log);
+  }
+
+  /**
+   * An operation failed, the connection should be checked before being used again.
+   */
+  private static void connectionFailed(VirtualBoxCloud host, VirtualBoxControl vboxControl) {
+    VirtualBoxControlPool pool = vboxControls.get(host.toString());
+    if (null != pool) {
+      pool.suspect(vboxControl);
+    }
+  }
+
+  private static VirtualBoxControlPool getVboxControlPool(VirtualBoxCloud host) {
+    String key = host.toString();
+    int poolSize = host.getConnectionPoolSize();
+    VirtualBoxControlPool pool = vboxControls.get(key);
+    if (null != pool && pool.size() == poolSize) {
+      return pool;
+    }
+    VirtualBoxControlPool newPool = new VirtualBoxControlPool(poolSize, null != pool ? pool.getConnector() : CONNECTOR);
+    if (null == pool) {
+      pool = vboxControls.putIfAbsent(key, newPool);
+      return null != pool ? pool : newPool;
+    }
+    // pool size was reconfigured, connections of the old pool may still be in use
+    // so each one is logged off once its last call returns
+    if (vboxControls.replace(key, pool, newPool)) {
+      pool.retireAll();
+      return newPool;
+    }
+    return getVboxControlPool(host);
+  }
+
+  /**
+   * VirtualBox versions of the hosts, so that the connections of a pool are opened without probing the version each time.
+   */
+  private static final ConcurrentMap<String, String> versions = new ConcurrentHashMap<String, String>();
 
-  private synchronized static VirtualBoxControl getVboxControl(VirtualBoxCloud host, VirtualBoxLogger log) {
-    VirtualBoxControl vboxControl = (VirtualBoxControl)vboxControls.get(host.toString());
-    if (null != vboxControl) {
-      if (vboxControl.isConnected()) {
-        return vboxControl;
+  /**
+   * Opens the connections to the hosts through their web service.
+   */
+  private static final Connector CONNECTOR = new Connector();
+
+  /**
+   * Opens the connections to specified host through specified connector from now on, dropping its current pool.
+   * Used by the tests and the benchmarks, which run against controls of their own.
+   */
+  static void connectThrough(VirtualBoxCloud host, Connector connector) {
+    VirtualBoxControlPool pool = vboxControls.put(host.toString(),
+        new VirtualBoxControlPool(host.getConnectionPoolSize(), connector));
+    if (null != pool) {
+      pool.retireAll();
+    }
+  }
+
+  static class Connector {
+    /**
+     * @return control for the VirtualBox version of specified host
+     */
+    VirtualBoxControl connect(VirtualBoxCloud host, VirtualBoxLogger log) {
+      String version = versions.get(host.toString());
+      if (null != version) {
+        try {
+          return connect(host, version, log);
+        } catch (RuntimeException e) {
+          versions.remove(host.toString(), version);
+          throw e;
+        }
       }
-      log.logInfo("Lost connection to " + host.getUrl() + ", reconnecting");
-      vboxControls.remove(host.toString()); // force a reconnect
-    }
-    vboxControl = createVboxControl(host, log);
-
-    vboxControls.put(host.toString(), vboxControl);
-    return vboxControl;
-  }
-
-  private static VirtualBoxControl createVboxControl(VirtualBoxCloud host, VirtualBoxLogger log) {
-    VirtualBoxControl vboxControl = null;
-
-    log.logInfo("Trying to connect to " + host.getUrl() + ", user " + host.getUsername());
-    IWebsessionManager manager = new IWebsessionManager(host.getUrl());
-    IVirtualBox vbox = manager.logon(host.getUsername(), host.getPassword());
-    String version = vbox.getVersion();
-    manager.disconnect(vbox);
-
-    log.logInfo("Creating connection to VirtualBox version " + version);
-      if (version.startsWith("4.3")) {
-       vboxControl = new VirtualBoxControlV43(host.getUrl(), host.getUsername(), host.getPassword());
-      } else if (version.startsWith("4.2")) {
-       vboxControl = new VirtualBoxControlV42(host.getUrl(), host.getUsername(), host.getPassword());
-      } else if (version.startsWith("4.1")) {
-       vboxControl = new VirtualBoxControlV41(host.getUrl(), host.getUsername(), host.getPassword());
-      } else if (version.startsWith("4.0")) {
-      vboxControl = new VirtualBoxControlV40(host.getUrl(), host.getUsername(), host.getPassword());
-    } else if (version.startsWith("3.")) {
-      vboxControl = new VirtualBoxControlV31(host.getUrl(), host.getUsername(), host.getPassword());
-    } else {
-      log.logError("VirtualBox version " + version + " not supported.");
-      throw new UnsupportedOperationException("VirtualBox version " + version + " not supported.");
-    }
-
-    log.logInfo("Connected to VirtualBox version " + version + " on host " + host.getUrl());
-    return vboxControl;
+
+      log.logInfo("Trying to connect to " + host.getUrl() + ", user " + host.getUsername());
+      IWebsessionManager manager = new IWebsessionManager(host.getUrl());
+      IVirtualBox vbox = manager.logon(host.getUsername(), host.getPassword());
+      version = vbox.getVersion();
+      manager.disconnect(vbox);
+
+      VirtualBoxControl vboxControl = connect(host, version, log);
+      versions.put(host.toString(), version);
+      return vboxControl;
+    }
+
+    private VirtualBoxControl connect(VirtualBoxCloud host, String version, VirtualBoxLogger log) {
+      VirtualBoxControl vboxControl = null;
+
+      log.logInfo("Creating connection to VirtualBox version " + version);
+        if (version.startsWith("4.3")) {
+         vboxControl = new VirtualBoxControlV43(host.getUrl(), host.getUsername(), host.getPassword());
+        } else if (version.startsWith("4.2")) {
+         vboxControl = new VirtualBoxControlV42(host.getUrl(), host.getUsername(), host.getPassword());
+        } else if (version.startsWith("4.1")) {
+         vboxControl = new VirtualBoxControlV41(host.getUrl(), host.getUsername(), host.getPassword());
+        } else if (version.startsWith("4.0")) {
+        vboxControl = new VirtualBoxControlV40(host.getUrl(), host.getUsername(), host.getPassword());
+      } else if (version.startsWith("3.")) {
+        vboxControl = new VirtualBoxControlV31(host.getUrl(), host.getUsername(), host.getPassword());
+      } else {
+        log.logError("VirtualBox version " + version + " not supported.");
+        throw new UnsupportedOperationException("VirtualBox version " + version + " not supported.");
+      }
+
+      log.logInfo("Connected to VirtualBox version " + version + " on host " + host.getUrl());
+      return vboxControl;
+    }
   }
 }
@@ -0,0 +1,44 @@
+package hudson.plugins.virtualbox;
+
+import hudson.Extension;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.TaskListener;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps started, connected and idle agents ready for the templates of the VirtualBox hosts,
+ * replacing the ones consumed by builds. Extra idle agents are removed by {@link VirtualBoxRetentionStrategy}.
+ */
+@Extension
+public class VirtualBoxWarmPool extends AsyncPeriodicWork {
+
+  private static final Logger LOG = Logger.getLogger(VirtualBoxWarmPool.class.getName());
+
+  /**
+   * Replenishment period, set in seconds.
+   */
+  static final long PERIOD = TimeUnit.SECONDS.toMillis(Long.getLong(VirtualBoxWarmPool.class.getName() + ".period", 30));
+
+  public VirtualBoxWarmPool() {
+    super("VirtualBox warm pool");
+  }
+
+  @Override
+  public long getRecurrencePeriod() {
+    return PERIOD;
+  }
+
+  @Override
+  protected void execute(TaskListener listener) throws IOException, InterruptedException {
+    for (VirtualBoxCloud host : VirtualBoxPlugin.getHosts()) {
+      try {
+        host.replenishWarmPools();
+      } catch (RuntimeException e) {
+        LOG.log(Level.WARNING, "Unable to replenish the warm pools of " + host.getDisplayName(), e);
+      }
+    }
+  }
+}
@@ -0,0 +1,88 @@
+package hudson.plugins.virtualbox;
+
+import hudson.init.InitMilestone;
+import hudson.init.Initializer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Connects to all the VirtualBox hosts in parallel once Jenkins has loaded its configuration, opening their
+ * connection pools and listing their machines, so that the first agents launched do not pay for it.
+ * Enabled with the hudson.plugins.virtualbox.VirtualBoxWarmUp.enabled system property.
+ */
+public final class VirtualBoxWarmUp {
+
+  private static final Logger LOG = Logger.getLogger(VirtualBoxWarmUp.class.getName());
+
+  static final boolean ENABLED = Boolean.getBoolean(VirtualBoxWarmUp.class.getName() + ".enabled");
+
+  /**
+   * Time the startup of Jenkins waits for the hosts, set in seconds. Slower hosts keep warming up in background.
+   */
+  static final long TIMEOUT = TimeUnit.SECONDS.toMillis(Long.getLong(VirtualBoxWarmUp.class.getName() + ".timeout", 30));
+
+  private VirtualBoxWarmUp() {
+  }
+
+  @Initializer(after = InitMilestone.JOB_LOADED)
+  public static void warmUpAtStartup() {
+    if (ENABLED) {
+      warmUp(VirtualBoxPlugin.getHosts(), TIMEOUT);
+    }
+  }
+
+  /**
+   * Warms up specified hosts in parallel, waiting at most specified timeout for all of them.
+   * Failures are reported on the page of each host.
+   *
+   * @param timeout maximum time to wait, in milliseconds
+   */
+  static void warmUp(List<VirtualBoxCloud> hosts, long timeout) {
+    if (hosts.isEmpty()) {
+      return;
+    }
+    ExecutorService executor = Executors.newCachedThreadPool(new ThreadFactory() {
+      private final AtomicInteger count = new AtomicInteger();
+
+      public Thread newThread(Runnable r) {
+        Thread thread = new Thread(r, "VirtualBox warm-up #" + count.incrementAndGet());
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    List<Future<?>> warmUps = new ArrayList<Future<?>>(hosts.size());
+    for (final VirtualBoxCloud host : hosts) {
+      warmUps.add(executor.submit(new Runnable() {
+        public void run() {
+          host.warmUp();
+        }
+      }));
+    }
+    executor.shutdown();
+
+    long deadline = System.currentTimeMillis() + timeout;
+    for (int i = 0; i < warmUps.size(); i++) {
+      try {
+        warmUps.get(i).get(Math.max(deadline - System.currentTimeMillis(), 0), TimeUnit.MILLISECONDS);
+      } catch (TimeoutException e) {
+        LOG.log(Level.INFO, "{0} not warmed up within {1} ms, continuing in background",
+            new Object[]{hosts.get(i).getDisplayName(), timeout});
+      } catch (ExecutionException e) {
+        LOG.log(Level.WARNING, "Unable to warm up " + hosts.get(i).getDisplayName(), e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+  }
+}
@@ -0,0 +1,207 @@
+package hudson.plugins.virtualbox;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Pool of logged-on web sessions to a VirtualBox host.
+ * <p>
+ * vboxwebsrv hands out a single {@code ISession} per web session, and managed object references
+ * are only valid within the web session that created them, so every operation that locks a machine
+ * must run on a web session of its own to be able to run concurrently with operations on other machines.
+ * </p>
+ * <p>
+ * At most {@link #DEFAULT_MAX_ACTIVE} web sessions are handed out at the same time, further operations wait
+ * for one to be given back, so that a burst of operations does not log on to the host as many times.
+ * Idle web sessions are closed before vboxwebsrv expires them (after 300 seconds by default),
+ * and those idle for more than {@link #DEFAULT_VALIDATE_AFTER} are validated before being handed out again,
+ * so that the hot path does not pay a round trip to the host on every operation.
+ * </p>
+ *
+ * @param <T> web session handle
+ */
+abstract class VirtualBoxWebSessionPool<T> {
+
+  static final int DEFAULT_MAX_ACTIVE = Integer.getInteger(VirtualBoxWebSessionPool.class.getName() + ".maxActive", 16);
+  static final int DEFAULT_MAX_IDLE = 4;
+  static final long DEFAULT_IDLE_TIMEOUT = TimeUnit.MINUTES.toMillis(4);
+  static final long DEFAULT_VALIDATE_AFTER = TimeUnit.SECONDS.toMillis(30);
+
+  private final int maxActive;
+  private final int maxIdle;
+  private final long idleTimeout;
+  private final long validateAfter;
+
+  /**
+   * One permit per web session which may be handed out, fair so that batches are not starved by single operations.
+   */
+  private final Semaphore active;
+
+  /**
+   * Most recently released sessions first, so that the least used ones expire.
+   */
+  private final BlockingDeque<IdleSession<T>> idle = new LinkedBlockingDeque<IdleSession<T>>();
+
+  VirtualBoxWebSessionPool() {
+    this(DEFAULT_MAX_ACTIVE, DEFAULT_MAX_IDLE, DEFAULT_IDLE_TIMEOUT);
+  }
+
+  VirtualBoxWebSessionPool(int maxActive, int maxIdle, long idleTimeout) {
+    this(maxActive, maxIdle, idleTimeout, DEFAULT_VALIDATE_AFTER);
+  }
+
+  VirtualBoxWebSessionPool(int maxActive, int maxIdle, long idleTimeout, long validateAfter) {
+    this.maxActive = maxActive;
+    this.maxIdle = maxIdle;
+    this.idleTimeout = idleTimeout;
+    this.validateAfter = validateAfter;
+    this.active = new Semaphore(maxActive, true);
+  }
+
+  /**
+   * @return maximum number of web sessions handed out at the same time
+   */
+  int getMaxActive() {
+    return maxActive;
+  }
+
+  /**
+   * Waits until a web session may be handed out.
+   *
+   * @return a valid idle web session, or a new one if none is available
+   */
+  T borrow() {
+    return borrow(1).get(0);
+  }
+
+  /**
+   * Waits until specified number of web sessions may be handed out at once, so that callers holding several web
+   * sessions never wait on each other.
+   *
+   * @param count number of web sessions, at most {@link #getMaxActive()}
+   * @return valid idle web sessions, or new ones if not enough are available
+   */
+  List<T> borrow(int count) {
+    try {
+      active.acquire(count);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted while waiting for a web session", e);
+    }
+    List<T> sessions = new ArrayList<T>(count);
+    try {
+      evictExpired();
+      while (sessions.size() < count) {
+        sessions.add(takeIdleOrCreate());
+      }
+      return sessions;
+    } catch (RuntimeException e) {
+      for (T session : sessions) {
+        release(session);
+      }
+      active.release(count - sessions.size());
+      throw e;
+    }
+  }
+
+  private T takeIdleOrCreate() {
+    IdleSession<T> candidate;
+    while (null != (candidate = idle.pollFirst())) {
+      if (System.currentTimeMillis() - candidate.since <= validateAfter || validateQuietly(candidate.session)) {
+        return candidate.session;
+      }
+      destroyQuietly(candidate.session);
+    }
+    return create();
+  }
+
+  /**
+   * Gives back a healthy web session, to be reused by next operation.
+   */
+  void release(T session) {
+    try {
+      if (idle.size() >= maxIdle) {
+        destroyQuietly(session);
+      } else {
+        idle.offerFirst(new IdleSession<T>(session, System.currentTimeMillis()));
+      }
+      evictExpired();
+    } finally {
+      active.release();
+    }
+  }
+
+  /**
+   * Closes a web session which failed.
+   */
+  void invalidate(T session) {
+    try {
+      destroyQuietly(session);
+    } finally {
+      active.release();
+    }
+  }
+
+  /**
+   * Closes all idle web sessions.
+   */
+  void close() {
+    IdleSession<T> candidate;
+    while (null != (candidate = idle.pollFirst())) {
+      destroyQuietly(candidate.session);
+    }
+  }
+
+  protected abstract T create();
+
+  protected abstract void destroy(T session);
+
+  /**
+   * Checks that an idle web session is still logged on, before handing it out.
+   *
+   * @return true if specified session can be used
+   */
+  protected boolean validate(T session) {
+    return true;
+  }
+
+  private void evictExpired() {
+    long now = System.currentTimeMillis();
+    IdleSession<T> oldest;
+    while (null != (oldest = idle.peekLast()) && now - oldest.since > idleTimeout) {
+      if (idle.removeLastOccurrence(oldest)) {
+        destroyQuietly(oldest.session);
+      }
+    }
+  }
+
+  private boolean validateQuietly(T session) {
+    try {
+      return validate(session);
+    } catch (RuntimeException e) {
+      return false;
+    }
+  }
+
+  private void destroyQuietly(T session) {
+    try {
+      destroy(session);
+    } catch (RuntimeException e) {
+      // session is lost anyway
+    }
+  }
+
+  private static final class IdleSession<T> {
+    final T session;
+    final long since;
+
+    IdleSession(T session, long since) {
+      this.session = session;
+      this.since = since;
+    }
+  }
+}
@@ -0,0 +1,786 @@
+package hudson.plugins.virtualbox;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.xml.parsers.DocumentBuilderFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+
+/**
+ * In-process stand-in for vboxwebsrv, answering the part of its SOAP interface used by the plugin:
+ * logon and logoff, version, machine listing and lookup, session locking, launching, powering down and
+ * saving machines through progress objects, network adapter MAC Address, and machine events.
+ * Other operations fail with a runtime fault naming them.
+ * <p>
+ * Machines go through the transient states of VirtualBox for {@link #setTransitionDelay}, and faults
+ * can be injected per operation, so that the real controls can be exercised without VirtualBox.
+ * </p>
+ */
+public class FakeVBoxWebServer {
+
+  private static final String SOAP_NS = "http://schemas.xmlsoap.org/soap/envelope/";
+  private static final String VBOX_NS = "http://www.virtualbox.org/";
+
+  /**
+   * E_FAIL, and VBOX_E_OBJECT_NOT_FOUND / VBOX_E_INVALID_OBJECT_STATE of VirtualBox.
+   */
+  public static final int E_FAIL = 0x80004005;
+  public static final int VBOX_E_OBJECT_NOT_FOUND = 0x80BB0001;
+  public static final int VBOX_E_INVALID_OBJECT_STATE = 0x80BB0007;
+
+  private final String version;
+  private HttpServer server;
+  private ExecutorService requests;
+  private final ScheduledExecutorService transitions = Executors.newSingleThreadScheduledExecutor();
+
+  private final AtomicInteger nextRef = new AtomicInteger();
+  private final Map<String, Object> objects = new ConcurrentHashMap<String, Object>();
+  private final Map<String, Machine> machines = Collections.synchronizedMap(new LinkedHashMap<String, Machine>());
+  private final Set<Listener> listeners = Collections.synchronizedSet(new HashSet<Listener>());
+
+  private final Map<String, Long> latencies = new ConcurrentHashMap<String, Long>();
+  private final Map<String, AtomicInteger> faults = new ConcurrentHashMap<String, AtomicInteger>();
+  private final Map<String, AtomicInteger> progressFaults = new ConcurrentHashMap<String, AtomicInteger>();
+  private final Map<String, AtomicInteger> calls = new ConcurrentHashMap<String, AtomicInteger>();
+  private volatile long transitionDelay;
+
+  /**
+   * @param version version reported to clients, which selects the control used by the plugin, for example 4.3.0
+   */
+  public FakeVBoxWebServer(String version) {
+    this.version = version;
+  }
+
+  public void start() throws IOException {
+    server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+    server.createContext("/", new HttpHandler() {
+      public void handle(HttpExchange exchange) throws IOException {
+        respond(exchange);
+      }
+    });
+    // event listeners block in getEvent
+    requests = Executors.newCachedThreadPool();
+    server.setExecutor(requests);
+    server.start();
+  }
+
+  public void stop() {
+    server.stop(0);
+    requests.shutdownNow();
+    transitions.shutdownNow();
+  }
+
+  public String getUrl() {
+    return "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+  }
+
+  /**
+   * Registers a powered off machine.
+   */
+  public void addMachine(String name, String macAddress) {
+    Machine machine = new Machine(name, macAddress);
+    machines.put(name, machine);
+  }
+
+  /**
+   * @return current state of specified machine, as named by VirtualBox
+   */
+  public String getState(String name) {
+    return machines.get(name).getState();
+  }
+
+  public void setState(String name, String state) {
+    machines.get(name).setState(state);
+  }
+
+  /**
+   * @param millis time spent by machines in Starting, Stopping and Saving states
+   */
+  public void setTransitionDelay(long millis) {
+    transitionDelay = millis;
+  }
+
+  /**
+   * @param operation SOAP operation, for example IMachine_launchVMProcess
+   * @param millis    time taken by every call to specified operation
+   */
+  public void setLatency(String operation, long millis) {
+    latencies.put(operation, millis);
+  }
+
+  /**
+   * Answers the next calls to specified operation with a runtime fault.
+   */
+  public void failNext(String operation, int times) {
+    faults.put(operation, new AtomicInteger(times));
+  }
+
+  /**
+   * Completes the progress returned by the next calls to specified operation with an error,
+   * leaving the machine in its previous state.
+   */
+  public void failNextProgress(String operation, int times) {
+    progressFaults.put(operation, new AtomicInteger(times));
+  }
+
+  /**
+   * @return number of calls to specified operation so far
+   */
+  public int getCallCount(String operation) {
+    AtomicInteger count = calls.get(operation);
+    return null != count ? count.get() : 0;
+  }
+
+  private void respond(HttpExchange exchange) throws IOException {
+    String body;
+    int status = 200;
+    try {
+      Element request = parse(exchange.getRequestBody());
+      String operation = request.getLocalName();
+      countCall(operation);
+      Long latency = latencies.get(operation);
+      if (null != latency) {
+        Thread.sleep(latency);
+      }
+      AtomicInteger fault = faults.get(operation);
+      if (null != fault && fault.getAndDecrement() > 0) {
+        throw new Fault(E_FAIL, "Injected fault in " + operation);
+      }
+      List<String> result = invoke(operation, arguments(request));
+      StringBuilder response = new StringBuilder();
+      response.append("<vbox:").append(operation).append("Response>");
+      for (String value : result) {
+        response.append("<returnval>").append(escape(value)).append("</returnval>");
+      }
+      response.append("</vbox:").append(operation).append("Response>");
+      body = envelope(response.toString());
+    } catch (Fault e) {
+      status = 500;
+      body = envelope(e.toXml());
+    } catch (Exception e) {
+      status = 500;
+      body = envelope(new Fault(E_FAIL, String.valueOf(e)).toXml());
+    }
+    byte[] bytes = body.getBytes("UTF-8");
+    exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+    exchange.sendResponseHeaders(status, bytes.length);
+    OutputStream out = exchange.getResponseBody();
+    try {
+      out.write(bytes);
+    } finally {
+      out.close();
+    }
+  }
+
+  private void countCall(String operation) {
+    AtomicInteger count = calls.get(operation);
+    if (null == count) {
+      calls.put(operation, new AtomicInteger());
+      count = calls.get(operation);
+    }
+    count.incrementAndGet();
+  }
+
+  private static Element parse(InputStream in) throws Exception {
+    ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+    byte[] chunk = new byte[8192];
+    for (int n = in.read(chunk); n > 0; n = in.read(chunk)) {
+      buffer.write(chunk, 0, n);
+    }
+    DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+    factory.setNamespaceAware(true);
+    Document document = factory.newDocumentBuilder().parse(new java.io.ByteArrayInputStream(buffer.toByteArray()));
+    Element body = firstElement(document.getDocumentElement().getElementsByTagNameNS(SOAP_NS, "Body").item(0));
+    if (null == body) {
+      throw new Fault(E_FAIL, "Empty SOAP body");
+    }
+    return body;
+  }
+
+  private static Element firstElement(Node parent) {
+    for (Node child = parent.getFirstChild(); null != child; child = child.getNextSibling()) {
+      if (Node.ELEMENT_NODE == child.getNodeType()) {
+        return (Element) child;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * @return values of the parameters of specified request, by name
+   */
+  private static Map<String, List<String>> arguments(Element request) {
+    Map<String, List<String>> result = new LinkedHashMap<String, List<String>>();
+    for (Node child = request.getFirstChild(); null != child; child = child.getNextSibling()) {
+      if (Node.ELEMENT_NODE != child.getNodeType()) {
+        continue;
+      }
+      List<String> values = result.get(child.getLocalName());
+      if (null == values) {
+        values = new ArrayList<String>();
+        result.put(child.getLocalName(), values);
+      }
+      values.add(child.getTextContent());
+    }
+    return result;
+  }
+
+  private static String envelope(String body) {
+    return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+        + "<SOAP-ENV:Envelope xmlns:SOAP-ENV=\"" + SOAP_NS + "\" xmlns:vbox=\"" + VBOX_NS + "\">"
+        + "<SOAP-ENV:Body>" + body + "</SOAP-ENV:Body></SOAP-ENV:Envelope>";
+  }
+
+  private static String escape(String value) {
+    return value.replace("&", "&amp;").replace("<", "&lt;").replace(">", "&gt;");
+  }
+
+  private static List<String> values(String... values) {
+    List<String> result = new ArrayList<String>(values.length);
+    Collections.addAll(result, values);
+    return result;
+  }
+
+  private static final List<String> VOID = Collections.emptyList();
+
+  private String register(Object object) {
+    String ref = Integer.toHexString(System.identityHashCode(this)) + "-" + nextRef.incrementAndGet();
+    objects.put(ref, object);
+    return ref;
+  }
+
+  private <T> T lookup(Map<String, List<String>> arguments, String name, Class<T> type) {
+    List<String> values = arguments.get(name);
+    String ref = null != values ? values.get(0) : null;
+    Object object = null != ref ? objects.get(ref) : null;
+    if (!type.isInstance(object)) {
+      throw new Fault(ref);
+    }
+    return type.cast(object);
+  }
+
+  private static String argument(Map<String, List<String>> arguments, String name) {
+    List<String> values = arguments.get(name);
+    return null != values ? values.get(0) : null;
+  }
+
+  private Machine findMachine(String nameOrId) {
+    synchronized (machines) {
+      for (Machine machine : machines.values()) {
+        if (machine.name.equals(nameOrId) || machine.id.equals(nameOrId)) {
+          return machine;
+        }
+      }
+    }
+    throw new Fault(VBOX_E_OBJECT_NOT_FOUND, "Could not find a registered machine named '" + nameOrId + "'");
+  }
+
+  private List<String> invoke(String operation, Map<String, List<String>> arguments) {
+    if ("IWebsessionManager_logon".equals(operation)) {
+      return values(register(new VirtualBox()));
+    }
+    if ("IWebsessionManager_logoff".equals(operation)) {
+      objects.remove(argument(arguments, "refIVirtualBox"));
+      return VOID;
+    }
+    if ("IWebsessionManager_getSessionObject".equals(operation)) {
+      // like vboxwebsrv, a single session per web session
+      VirtualBox vbox = lookup(arguments, "refIVirtualBox", VirtualBox.class);
+      synchronized (vbox) {
+        if (null == vbox.sessionRef) {
+          vbox.sessionRef = register(new Session());
+        }
+        return values(vbox.sessionRef);
+      }
+    }
+    if ("IManagedObjectRef_release".equals(operation)) {
+      objects.remove(argument(arguments, "_this"));
+      return VOID;
+    }
+    if ("IVirtualBox_getVersion".equals(operation)) {
+      lookup(arguments, "_this", VirtualBox.class);
+      return values(version);
+    }
+    if ("IVirtualBox_getMachines".equals(operation)) {
+      lookup(arguments, "_this", VirtualBox.class);
+      List<String> result = new ArrayList<String>();
+      synchronized (machines) {
+        for (Machine machine : machines.values()) {
+          result.add(machine.ref);
+        }
+      }
+      return result;
+    }
+    if ("IVirtualBox_getMachineStates".equals(operation)) {
+      lookup(arguments, "_this", VirtualBox.class);
+      List<String> result = new ArrayList<String>();
+      List<String> refs = arguments.get("machines");
+      for (String ref : null != refs ? refs : Collections.<String>emptyList()) {
+        Object machine = objects.get(ref);
+        if (!(machine instanceof Machine)) {
+          throw new Fault(ref);
+        }
+        result.add(((Machine) machine).getState());
+      }
+      return result;
+    }
+    if ("IVirtualBox_findMachine".equals(operation)) {
+      lookup(arguments, "_this", VirtualBox.class);
+      return values(findMachine(argument(arguments, "nameOrId")).ref);
+    }
+    if ("IVirtualBox_getEventSource".equals(operation)) {
+      lookup(arguments, "_this", VirtualBox.class);
+      return values(register(new EventSource()));
+    }
+    if (operation.startsWith("IMachine_")) {
+      return invokeMachine(operation, lookup(arguments, "_this", Machine.class), arguments);
+    }
+    if ("INetworkAdapter_getMACAddress".equals(operation)) {
+      return values(lookup(arguments, "_this", NetworkAdapter.class).macAddress);
+    }
+    if (operation.startsWith("ISession_")) {
+      return invokeSession(operation, lookup(arguments, "_this", Session.class));
+    }
+    if (operation.startsWith("IConsole_")) {
+      return invokeConsole(operation, lookup(arguments, "_this", Console.class));
+    }
+    if (operation.startsWith("IProgress_")) {
+      return invokeProgress(operation, lookup(arguments, "_this", Progress.class), arguments);
+    }
+    if ("IVirtualBoxErrorInfo_getText".equals(operation)) {
+      return values(lookup(arguments, "_this", ErrorInfo.class).text);
+    }
+    if ("IVirtualBoxErrorInfo_getNext".equals(operation)) {
+      lookup(arguments, "_this", ErrorInfo.class);
+      return values("");
+    }
+    if ("IVirtualBoxErrorInfo_getResultCode".equals(operation)) {
+      lookup(arguments, "_this", ErrorInfo.class);
+      return values(String.valueOf(E_FAIL));
+    }
+    if (operation.startsWith("IEventSource_")) {
+      return invokeEventSource(operation, lookup(arguments, "_this", EventSource.class), arguments);
+    }
+    if ("IEvent_getType".equals(operation)) {
+      return values(lookup(arguments, "_this", Event.class).type);
+    }
+    if ("IMachineEvent_getMachineId".equals(operation)) {
+      return values(lookup(arguments, "_this", Event.class).machineId);
+    }
+    throw new Fault(E_FAIL, operation + " is not implemented by " + getClass().getSimpleName());
+  }
+
+  private List<String> invokeMachine(String operation, Machine machine, Map<String, List<String>> arguments) {
+    if ("IMachine_getName".equals(operation)) {
+      return values(machine.name);
+    }
+    if ("IMachine_getId".equals(operation)) {
+      return values(machine.id);
+    }
+    if ("IMachine_getState".equals(operation)) {
+      return values(machine.getState());
+    }
+    if ("IMachine_getSessionState".equals(operation)) {
+      return values(machine.getSessionState());
+    }
+    if ("IMachine_getOSTypeId".equals(operation)) {
+      return values("Linux26_64");
+    }
+    if ("IMachine_getNetworkAdapter".equals(operation)) {
+      if (!"0".equals(argument(arguments, "slot"))) {
+        throw new Fault(E_FAIL, "Only the first network adapter is emulated");
+      }
+      return values(machine.networkAdapterRef);
+    }
+    if ("IMachine_lockMachine".equals(operation)) {
+      Session session = lookup(arguments, "session", Session.class);
+      machine.lock(session, "Write".equals(argument(arguments, "lockType")));
+      return VOID;
+    }
+    if ("IMachine_launchVMProcess".equals(operation)) {
+      Session session = lookup(arguments, "session", Session.class);
+      return values(machine.launch(session, operation));
+    }
+    throw new Fault(E_FAIL, operation + " is not implemented by " + getClass().getSimpleName());
+  }
+
+  private List<String> invokeSession(String operation, Session session) {
+    if ("ISession_getState".equals(operation)) {
+      return values(session.getState());
+    }
+    if ("ISession_getConsole".equals(operation)) {
+      return values(session.getConsoleRef());
+    }
+    if ("ISession_unlockMachine".equals(operation)) {
+      session.unlock();
+      return VOID;
+    }
+    throw new Fault(E_FAIL, operation + " is not implemented by " + getClass().getSimpleName());
+  }
+
+  private List<String> invokeConsole(String operation, Console console) {
+    Machine machine = console.machine;
+    if ("IConsole_powerDown".equals(operation)) {
+      return values(machine.transition(operation, "Stopping", "PoweredOff", "Running", "Paused", "Stuck"));
+    }
+    if ("IConsole_saveState".equals(operation)) {
+      return values(machine.transition(operation, "Saving", "Saved", "Running", "Paused"));
+    }
+    if ("IConsole_resume".equals(operation)) {
+      machine.expectState("Paused");
+      machine.setState("Running");
+      return VOID;
+    }
+    if ("IConsole_pause".equals(operation)) {
+      machine.expectState("Running");
+      machine.setState("Paused");
+      return VOID;
+    }
+    throw new Fault(E_FAIL, operation + " is not implemented by " + getClass().getSimpleName());
+  }
+
+  private List<String> invokeProgress(String operation, Progress progress, Map<String, List<String>> arguments) {
+    if ("IProgress_waitForCompletion".equals(operation)) {
+      progress.await(Integer.parseInt(argument(arguments, "timeout")));
+      return VOID;
+    }
+    if ("IProgress_getCompleted".equals(operation)) {
+      return values(String.valueOf(0 == progress.done.getCount()));
+    }
+    if ("IProgress_getResultCode".equals(operation)) {
+      return values(String.valueOf(progress.resultCode));
+    }
+    if ("IProgress_getErrorInfo".equals(operation)) {
+      return values(null != progress.errorInfoRef ? progress.errorInfoRef : "");
+    }
+    if ("IProgress_getPercent".equals(operation)) {
+      return values(0 == progress.done.getCount() ? "100" : "0");
+    }
+    throw new Fault(E_FAIL, operation + " is not implemented by " + getClass().getSimpleName());
+  }
+
+  private List<String> invokeEventSource(String operation, EventSource source, Map<String, List<String>> arguments) {
+    if ("IEventSource_createListener".equals(operation)) {
+      return values(register(new Listener()));
+    }
+    if ("IEventSource_registerListener".equals(operation)) {
+      Listener listener = lookup(arguments, "listener", Listener.class);
+      List<String> interesting = arguments.get("interesting");
+      if (null != interesting) {
+        listener.interesting.addAll(interesting);
+      }
+      listeners.add(listener);
+      return VOID;
+    }
+    if ("IEventSource_unregisterListener".equals(operation)) {
+      listeners.remove(lookup(arguments, "listener", Listener.class));
+      return VOID;
+    }
+    if ("IEventSource_getEvent".equals(operation)) {
+      Listener listener = lookup(arguments, "listener", Listener.class);
+      try {
+        String event = listener.events.poll(Integer.parseInt(argument(arguments, "timeout")), TimeUnit.MILLISECONDS);
+        return values(null != event ? event : "");
+      } catch (InterruptedException e) {
+        return values("");
+      }
+    }
+    if ("IEventSource_eventProcessed".equals(operation)) {
+      // the event stays valid until released
+      lookup(arguments, "event", Event.class);
+      return VOID;
+    }
+    throw new Fault(E_FAIL, operation + " is not implemented by " + getClass().getSimpleName());
+  }
+
+  private void fire(String type, String machineId) {
+    synchronized (listeners) {
+      for (Listener listener : listeners) {
+        if (listener.interesting.contains(type)) {
+          listener.events.offer(register(new Event(type, machineId)));
+        }
+      }
+    }
+  }
+
+  /**
+   * SOAP fault, a RuntimeFault with a result code or an InvalidObjectFault for an unknown reference.
+   */
+  private static final class Fault extends RuntimeException {
+    private final int resultCode;
+    private final String badObjectId;
+
+    Fault(int resultCode, String message) {
+      super(message);
+      this.resultCode = resultCode;
+      this.badObjectId = null;
+    }
+
+    Fault(String badObjectId) {
+      super("Invalid managed object reference \"" + badObjectId + "\"");
+      this.resultCode = 0;
+      this.badObjectId = null != badObjectId ? badObjectId : "";
+    }
+
+    String toXml() {
+      String detail = null != badObjectId
+          ? "<vbox:InvalidObjectFault><badObjectID>" + escape(badObjectId) + "</badObjectID></vbox:InvalidObjectFault>"
+          : "<vbox:RuntimeFault><resultCode>" + resultCode + "</resultCode><returnval></returnval></vbox:RuntimeFault>";
+      return "<SOAP-ENV:Fault><faultcode>SOAP-ENV:Client</faultcode><faultstring>" + escape(getMessage())
+          + "</faultstring><detail>" + detail + "</detail></SOAP-ENV:Fault>";
+    }
+  }
+
+  private static final class VirtualBox {
+    String sessionRef;
+  }
+
+  private static final class NetworkAdapter {
+    final String macAddress;
+
+    NetworkAdapter(String macAddress) {
+      this.macAddress = macAddress;
+    }
+  }
+
+  private final class Machine {
+    final String name;
+    final String id = UUID.randomUUID().toString();
+    final String ref;
+    final String networkAdapterRef;
+    private String state = "PoweredOff";
+
+    /**
+     * Session holding the write lock of this machine, null if none.
+     */
+    private Session writer;
+
+    Machine(String name, String macAddress) {
+      this.name = name;
+      this.ref = register(this);
+      this.networkAdapterRef = register(new NetworkAdapter(macAddress.replace(":", "").toUpperCase(Locale.ENGLISH)));
+    }
+
+    synchronized String getState() {
+      return state;
+    }
+
+    void setState(String newState) {
+      synchronized (this) {
+        if (newState.equals(state)) {
+          return;
+        }
+        state = newState;
+      }
+      fire("OnMachineStateChanged", id);
+    }
+
+    synchronized boolean isOnline() {
+      return "Running".equals(state) || "Paused".equals(state) || "Stuck".equals(state) || "Starting".equals(state)
+          || "Stopping".equals(state) || "Saving".equals(state);
+    }
+
+    /**
+     * A running machine is locked by its own process, which the web service clients never see.
+     */
+    synchronized String getSessionState() {
+      return null != writer || isOnline() ? "Locked" : "Unlocked";
+    }
+
+    synchronized void expectState(String... expected) {
+      for (String candidate : expected) {
+        if (candidate.equals(state)) {
+          return;
+        }
+      }
+      throw new Fault(VBOX_E_INVALID_OBJECT_STATE, "Machine " + name + " is in state " + state);
+    }
+
+    void lock(Session session, boolean write) {
+      synchronized (this) {
+        if (write && "Locked".equals(getSessionState())) {
+          throw new Fault(VBOX_E_INVALID_OBJECT_STATE, "Machine " + name + " is already locked");
+        }
+        if (!write && !isOnline() && null == writer) {
+          throw new Fault(VBOX_E_INVALID_OBJECT_STATE, "Machine " + name + " has no session to share");
+        }
+        if (write) {
+          writer = session;
+        }
+      }
+      session.lock(this);
+      fire("OnSessionStateChanged", id);
+    }
+
+    synchronized void unlock(Session session) {
+      if (writer == session) {
+        writer = null;
+      }
+    }
+
+    String launch(Session session, String operation) {
+      synchronized (this) {
+        if (null != writer) {
+          throw new Fault(VBOX_E_INVALID_OBJECT_STATE, "Machine " + name + " is locked");
+        }
+        expectState("PoweredOff", "Saved", "Aborted", "Teleported");
+      }
+      session.lock(this);
+      return transition(operation, "Starting", "Running");
+    }
+
+    /**
+     * Moves this machine to a transient state, and to its final state once the returned progress completes.
+     *
+     * @return reference of the progress
+     */
+    String transition(String operation, String transientState, final String finalState, String... expected) {
+      final String previous;
+      synchronized (this) {
+        if (expected.length > 0) {
+          expectState(expected);
+        }
+        previous = state;
+      }
+      AtomicInteger progressFault = progressFaults.get(operation);
+      final boolean fail = null != progressFault && progressFault.getAndDecrement() > 0;
+      final Progress progress = new Progress();
+      setState(transientState);
+      transitions.schedule(new Runnable() {
+        public void run() {
+          if (fail) {
+            setState(previous);
+            progress.fail(register(new ErrorInfo("Injected failure of the progress of " + name)));
+          } else {
+            setState(finalState);
+            progress.complete();
+          }
+        }
+      }, transitionDelay, TimeUnit.MILLISECONDS);
+      return register(progress);
+    }
+  }
+
+  private final class Session {
+    private Machine machine;
+    private String consoleRef;
+
+    synchronized void lock(Machine machine) {
+      if (null != this.machine) {
+        throw new Fault(VBOX_E_INVALID_OBJECT_STATE, "Session is already locked");
+      }
+      this.machine = machine;
+      consoleRef = register(new Console(machine));
+    }
+
+    synchronized String getState() {
+      return null != machine ? "Locked" : "Unlocked";
+    }
+
+    synchronized String getConsoleRef() {
+      return null != consoleRef ? consoleRef : "";
+    }
+
+    void unlock() {
+      Machine unlocked;
+      synchronized (this) {
+        if (null == machine) {
+          throw new Fault(VBOX_E_INVALID_OBJECT_STATE, "Session is not locked");
+        }
+        unlocked = machine;
+        objects.remove(consoleRef);
+        machine = null;
+        consoleRef = null;
+      }
+      unlocked.unlock(this);
+      fire("OnSessionStateChanged", unlocked.id);
+    }
+  }
+
+  private static final class Console {
+    final Machine machine;
+
+    Console(Machine machine) {
+      this.machine = machine;
+    }
+  }
+
+  private static final class Progress {
+    final CountDownLatch done = new CountDownLatch(1);
+    volatile int resultCode;
+    volatile String errorInfoRef;
+
+    void complete() {
+      done.countDown();
+    }
+
+    void fail(String errorInfoRef) {
+      this.resultCode = E_FAIL;
+      this.errorInfoRef = errorInfoRef;
+      done.countDown();
+    }
+
+    void await(int timeout) {
+      try {
+        if (timeout < 0) {
+          done.await();
+        } else {
+          done.await(timeout, TimeUnit.MILLISECONDS);
+        }
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  private static final class ErrorInfo {
+    final String text;
+
+    ErrorInfo(String text) {
+      this.text = text;
+    }
+  }
+
+  private static final class EventSource {
+  }
+
+  private static final class Listener {
+    final Set<String> interesting = Collections.synchronizedSet(new HashSet<String>());
+    final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+  }
+
+  private static final class Event {
+    final String type;
+    final String machineId;
+
+    Event(String type, String machineId) {
+      this.type = type;
+      this.machineId = machineId;
+    }
+  }
+}
@@ -0,0 +1,48 @@
+package hudson.plugins.virtualbox;
+
+import junit.framework.TestCase;
+
+/**
+ * Looks machines up in the inventory of a {@link VirtualBoxCloud} served by {@link FakeVBoxWebServer}.
+ */
+public class VirtualBoxCloudInventoryTest extends TestCase {
+
+  private FakeVBoxWebServer server;
+  private VirtualBoxCloud host;
+
+  @Override
+  protected void setUp() throws Exception {
+    server = new FakeVBoxWebServer("4.3.12");
+    server.addMachine("vm1", "08:00:27:12:34:56");
+    server.start();
+    host = new VirtualBoxCloud("fake", server.getUrl(), "user", "password");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    VirtualBoxUtils.disconnectAll();
+    server.stop();
+  }
+
+  public void testListedMachineIsServedFromInventory() {
+    assertEquals("vm1", host.getVirtualMachine("vm1").getName());
+    assertEquals("vm1", host.getVirtualMachine("vm1").getName());
+    assertEquals(1, server.getCallCount("IVirtualBox_getMachines"));
+  }
+
+  public void testUnknownMachineIsNotFound() {
+    assertNull(host.getVirtualMachine("missing"));
+  }
+
+  public void testMissingMachineIsNotListedOnEveryLookup() {
+    assertNull(host.getVirtualMachine("missing"));
+    assertNull(host.getVirtualMachine("missing"));
+    assertEquals(1, server.getCallCount("IVirtualBox_getMachines"));
+  }
+
+  public void testMachineCreatedSinceListingIsFound() {
+    host.refreshVirtualMachinesList();
+    server.addMachine("vm2", "08:00:27:65:43:21");
+    assertEquals("vm2", host.getVirtualMachine("vm2").getName());
+  }
+}
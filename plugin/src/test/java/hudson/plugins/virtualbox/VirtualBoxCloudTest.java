@@ -1,5 +1,6 @@
 package hudson.plugins.virtualbox;
 
+import java.util.Collections;
 import org.jvnet.hudson.test.HudsonTestCase;
 
 /**
@@ -7,10 +8,16 @@ import org.jvnet.hudson.test.HudsonTestCase;
  */
 public class VirtualBoxCloudTest extends HudsonTestCase {
   public void testConfigRoundtrip() throws Exception {
-    VirtualBoxCloud orig = new VirtualBoxCloud("Test", "http://localhost:18083", "godin", "12345");
+    VirtualBoxCloud orig = new VirtualBoxCloud("Test", "http://localhost:18083", "godin", "12345", 4,
+        Collections.singletonList(new VirtualBoxTemplate("linux", "vm1 vm2", "base", "headless", "powerdown", "/var/hudson", 2, 2, 15, 1)),
+        VirtualBoxCloud.DEFAULT_CONNECTION_POOL_SIZE, VirtualBoxCloud.DEFAULT_INVENTORY_TTL,
+        VirtualBoxPlacement.BinPacking.ID);
     hudson.clouds.add(orig);
     submit(createWebClient().goTo("configure").getFormByName("config"));
 
-    assertEqualBeans(orig, hudson.clouds.iterator().next(), "name,url,username,password");
+    VirtualBoxCloud saved = (VirtualBoxCloud) hudson.clouds.iterator().next();
+    assertEqualBeans(orig, saved, "name,url,username,password,instanceCap,connectionPoolSize,inventoryTtl,placement");
+    assertEqualBeans(orig.getTemplates().get(0), saved.getTemplates().get(0),
+        "labelString,virtualMachineNames,snapshotName,virtualMachineType,virtualMachineStopMode,remoteFS,numExecutors,instanceCap,idleMinutes,minIdle");
   }
 }
@@ -0,0 +1,200 @@
+package hudson.plugins.virtualbox;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import junit.framework.TestCase;
+import org.virtualbox_4_3.VBoxException;
+
+/**
+ * Drives {@link VirtualBoxControlV43} end to end, through its web service bindings, against {@link FakeVBoxWebServer}.
+ */
+public class VirtualBoxControlV43FakeServerTest extends TestCase {
+
+  private static final String MAC_ADDRESS = "08:00:27:12:34:56";
+
+  private final VirtualBoxLogger log = new VirtualBoxSystemLog(Logger.getLogger(getClass().getName()), "[test] ");
+
+  private FakeVBoxWebServer server;
+  private VirtualBoxCloud host;
+  private VirtualBoxControlV43 control;
+
+  @Override
+  protected void setUp() throws Exception {
+    server = new FakeVBoxWebServer("4.3.12");
+    server.addMachine("vm1", MAC_ADDRESS);
+    server.addMachine("vm2", "08:00:27:65:43:21");
+    server.start();
+    host = new VirtualBoxCloud("fake", server.getUrl(), "user", "password");
+    control = new VirtualBoxControlV43(server.getUrl(), "user", "password");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    control.disconnect();
+    VirtualBoxUtils.disconnectAll();
+    server.stop();
+  }
+
+  public void testGetMachines() {
+    List<VirtualBoxMachine> machines = control.getMachines(host, log);
+    assertEquals(2, machines.size());
+    assertEquals("vm1", machines.get(0).getName());
+    assertEquals("PoweredOff", machines.get(0).getState());
+    assertEquals("080027123456", machines.get(0).getMacAddress());
+    assertEquals("vm2", machines.get(1).getName());
+  }
+
+  public void testGetMacAddress() {
+    assertEquals("080027123456", control.getMacAddress(new VirtualBoxMachine(host, "vm1"), log));
+  }
+
+  public void testStartAndPowerDown() {
+    VirtualBoxMachine machine = new VirtualBoxMachine(host, "vm1");
+    assertEquals(0, control.startVm(machine, "headless", log));
+    assertEquals("Running", server.getState("vm1"));
+    // already running
+    assertEquals(0, control.startVm(machine, "headless", log));
+    assertEquals(1, server.getCallCount("IMachine_launchVMProcess"));
+
+    assertEquals(0, control.stopVm(machine, "powerdown", log));
+    assertEquals("PoweredOff", server.getState("vm1"));
+  }
+
+  public void testStopSavesState() {
+    server.setState("vm1", "Running");
+    assertEquals(0, control.stopVm(new VirtualBoxMachine(host, "vm1"), "pause", log));
+    assertEquals("Saved", server.getState("vm1"));
+  }
+
+  public void testStartWaitsForTransition() {
+    server.setTransitionDelay(300);
+    long start = System.currentTimeMillis();
+    assertEquals(0, control.startVm(new VirtualBoxMachine(host, "vm1"), "headless", log));
+    assertTrue(System.currentTimeMillis() - start >= 300);
+    assertEquals("Running", server.getState("vm1"));
+  }
+
+  public void testStartAsyncDoesNotBlock() throws Exception {
+    server.setTransitionDelay(1000);
+    long start = System.currentTimeMillis();
+    Future<Long> started = VirtualBoxUtils.startVmAsync(new VirtualBoxMachine(host, "vm1"), "headless", null, log);
+    assertTrue(System.currentTimeMillis() - start < 1000);
+    assertEquals(Long.valueOf(0), started.get(30, TimeUnit.SECONDS));
+    assertEquals("Running", server.getState("vm1"));
+  }
+
+  public void testStartWaitsForMachineInTransientState() {
+    server.setState("vm1", "Starting");
+    new Thread() {
+      @Override
+      public void run() {
+        try {
+          Thread.sleep(300);
+        } catch (InterruptedException e) {
+          return;
+        }
+        server.setState("vm1", "Running");
+      }
+    }.start();
+    assertEquals(0, control.startVm(new VirtualBoxMachine(host, "vm1"), "headless", log));
+    assertEquals(0, server.getCallCount("IMachine_launchVMProcess"));
+  }
+
+  public void testFailedLaunch() {
+    VirtualBoxMachine machine = new VirtualBoxMachine(host, "vm1");
+    server.failNextProgress("IMachine_launchVMProcess", 1);
+    assertTrue(0 != control.startVm(machine, "headless", log));
+    assertEquals("PoweredOff", server.getState("vm1"));
+    // session released, next attempt succeeds
+    assertEquals(0, control.startVm(machine, "headless", log));
+    assertEquals("Running", server.getState("vm1"));
+  }
+
+  public void testFaultInjection() {
+    VirtualBoxMachine machine = new VirtualBoxMachine(host, "vm1");
+    server.failNext("IMachine_launchVMProcess", 1);
+    try {
+      control.startVm(machine, "headless", log);
+      fail();
+    } catch (VBoxException e) {
+      // expected
+    }
+    assertEquals("PoweredOff", server.getState("vm1"));
+    assertEquals(0, control.startVm(machine, "headless", log));
+    assertEquals("Running", server.getState("vm1"));
+  }
+
+  public void testBatchStartWaitsOnceForAllMachines() {
+    server.setTransitionDelay(2000);
+    VirtualBoxMachine vm1 = new VirtualBoxMachine(host, "vm1");
+    VirtualBoxMachine vm2 = new VirtualBoxMachine(host, "vm2");
+    long start = System.currentTimeMillis();
+    Map<VirtualBoxMachine, Long> results = control.startVms(Arrays.asList(vm1, vm2), "headless", log);
+    // one after another, starting both would take 4 seconds
+    assertTrue(System.currentTimeMillis() - start < 4000);
+    assertEquals(Long.valueOf(0), results.get(vm1));
+    assertEquals(Long.valueOf(0), results.get(vm2));
+    assertEquals("Running", server.getState("vm1"));
+    assertEquals("Running", server.getState("vm2"));
+
+    results = control.stopVms(Arrays.asList(vm1, vm2), "pause", log);
+    assertEquals(Long.valueOf(0), results.get(vm1));
+    assertEquals(Long.valueOf(0), results.get(vm2));
+    assertEquals("Saved", server.getState("vm1"));
+    assertEquals("Saved", server.getState("vm2"));
+  }
+
+  public void testBatchReportsEveryMachine() {
+    server.setState("vm2", "Running");
+    server.failNextProgress("IMachine_launchVMProcess", 1);
+    VirtualBoxMachine vm1 = new VirtualBoxMachine(host, "vm1");
+    VirtualBoxMachine vm2 = new VirtualBoxMachine(host, "vm2");
+    VirtualBoxMachine missing = new VirtualBoxMachine(host, "missing");
+    Map<VirtualBoxMachine, Long> results = control.startVms(Arrays.asList(vm1, vm2, missing), "headless", log);
+    assertTrue(0 != results.get(vm1));
+    assertEquals(Long.valueOf(0), results.get(vm2));
+    assertEquals(Long.valueOf(-1), results.get(missing));
+    assertEquals("PoweredOff", server.getState("vm1"));
+  }
+
+  public void testUnknownMachine() {
+    try {
+      control.startVm(new VirtualBoxMachine(host, "missing"), "headless", log);
+      fail();
+    } catch (VBoxException e) {
+      // expected
+    }
+  }
+
+  public void testConnectorDetectsVersion() {
+    VirtualBoxControl detected = new VirtualBoxUtils.Connector().connect(host, log);
+    try {
+      assertTrue(detected instanceof VirtualBoxControlV43);
+      assertTrue(detected.isConnected());
+    } finally {
+      detected.disconnect();
+    }
+  }
+
+  public void testConnectionTestLogsOff() throws Exception {
+    control.disconnect();
+    awaitLoggedOff();
+
+    assertEquals(2, VirtualBoxUtils.testConnection(host, log).size());
+    // logged off in the background, the event listener within a poll
+    awaitLoggedOff();
+  }
+
+  private void awaitLoggedOff() throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (server.getCallCount("IWebsessionManager_logoff") < server.getCallCount("IWebsessionManager_logon")
+        && System.currentTimeMillis() < deadline) {
+      Thread.sleep(50);
+    }
+    assertEquals(server.getCallCount("IWebsessionManager_logon"), server.getCallCount("IWebsessionManager_logoff"));
+  }
+}
@@ -0,0 +1,34 @@
+package hudson.plugins.virtualbox;
+
+import java.util.List;
+import junit.framework.TestCase;
+
+/**
+ * Checks the ring buffer of {@link VirtualBoxHostMetrics}.
+ */
+public class VirtualBoxHostMetricsTest extends TestCase {
+
+  public void testEmpty() {
+    VirtualBoxHostMetrics metrics = new VirtualBoxHostMetrics(3);
+    assertNull(metrics.getLatest());
+    assertTrue(metrics.getSamples().isEmpty());
+  }
+
+  public void testKeepsLatestSamplesOldestFirst() {
+    VirtualBoxHostMetrics metrics = new VirtualBoxHostMetrics(3);
+    for (int running = 1; running <= 5; running++) {
+      metrics.add(new VirtualBoxHostLoad(1024, 512, 2, 0.5, running));
+    }
+    List<VirtualBoxHostLoad> samples = metrics.getSamples();
+    assertEquals(3, samples.size());
+    assertEquals(3, samples.get(0).getRunningMachines());
+    assertEquals(4, samples.get(1).getRunningMachines());
+    assertEquals(5, samples.get(2).getRunningMachines());
+    assertEquals(5, metrics.getLatest().getRunningMachines());
+  }
+
+  public void testCpuPercent() {
+    assertEquals(50, new VirtualBoxHostLoad(1024, 512, 2, 0.5, 1).getCpuPercent());
+    assertEquals(-1, VirtualBoxHostLoad.unavailable().getCpuPercent());
+  }
+}
@@ -0,0 +1,46 @@
+package hudson.plugins.virtualbox;
+
+import java.util.concurrent.TimeUnit;
+import junit.framework.TestCase;
+
+/**
+ * Checks the buckets and percentiles of {@link VirtualBoxLatencyHistogram}.
+ */
+public class VirtualBoxLatencyHistogramTest extends TestCase {
+
+  public void testEmpty() {
+    VirtualBoxLatencyHistogram histogram = new VirtualBoxLatencyHistogram("startVm");
+    assertEquals(0, histogram.getCount());
+    assertEquals(0, histogram.getMeanMillis());
+    assertEquals(0, histogram.getP99Millis());
+  }
+
+  public void testPercentiles() {
+    VirtualBoxLatencyHistogram histogram = new VirtualBoxLatencyHistogram("startVm");
+    for (int i = 0; i < 98; i++) {
+      histogram.record(TimeUnit.MILLISECONDS.toNanos(3), false);
+    }
+    histogram.record(TimeUnit.MILLISECONDS.toNanos(150), false);
+    histogram.record(TimeUnit.MINUTES.toNanos(5), true);
+    assertEquals(100, histogram.getCount());
+    assertEquals(1, histogram.getErrors());
+    assertEquals(5, histogram.getP50Millis());
+    assertEquals(5, histogram.getP95Millis());
+    assertEquals(200, histogram.getP99Millis());
+    assertEquals(TimeUnit.MINUTES.toMillis(5), histogram.getMaxMillis());
+    assertEquals(TimeUnit.MINUTES.toMillis(5), histogram.getPercentileMillis(100));
+    long[] counts = histogram.getBucketCounts();
+    assertEquals(98, counts[2]);
+    assertEquals(1, counts[counts.length - 1]);
+  }
+
+  public void testLatenciesPerHost() {
+    VirtualBoxLatencies latencies = VirtualBoxLatencies.forHost("http://latencies:18083");
+    assertSame(latencies, VirtualBoxLatencies.forHost("http://latencies:18083"));
+    latencies.record("stopVm", System.nanoTime(), false);
+    latencies.record("findMachine", System.nanoTime(), true);
+    assertEquals(2, latencies.getOperations().size());
+    assertEquals("findMachine", latencies.getOperations().get(0).getOperation());
+    assertEquals(1, latencies.getOperations().get(0).getErrors());
+  }
+}
@@ -0,0 +1,29 @@
+package hudson.plugins.virtualbox;
+
+import java.util.HashMap;
+import java.util.Map;
+import junit.framework.TestCase;
+
+/**
+ * Indexes listed machines by MAC Address with {@link VirtualBoxMacAddressIndex}.
+ */
+public class VirtualBoxMacAddressIndexTest extends TestCase {
+
+  public void testMachineWithoutMacAddressIsSkipped() {
+    Map<String, VirtualBoxMachine> machines = new HashMap<String, VirtualBoxMachine>();
+    machines.put("agent1", new VirtualBoxMachine(null, "vm1", "uuid1", "PoweredOff", "Linux", "08:00:27:12:34:56"));
+    // no network adapter, or listed by VirtualBox 3.x
+    machines.put("agent2", new VirtualBoxMachine(null, "vm2", "uuid2", "PoweredOff", "Linux", null));
+
+    Map<String, String> index = VirtualBoxMacAddressIndex.index(machines);
+
+    assertEquals(1, index.size());
+    assertEquals("agent1", index.get("080027123456"));
+  }
+
+  public void testNormalize() {
+    assertEquals("080027123456", VirtualBoxMacAddressIndex.normalize("08-00-27-12-34-56"));
+    assertEquals("080027ABCDEF", VirtualBoxMacAddressIndex.normalize("08:00:27:ab:cd:ef"));
+    assertNull(VirtualBoxMacAddressIndex.normalize(null));
+  }
+}
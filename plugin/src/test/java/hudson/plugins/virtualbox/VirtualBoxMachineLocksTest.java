@@ -0,0 +1,130 @@
+package hudson.plugins.virtualbox;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.locks.Lock;
+import java.util.logging.Logger;
+import junit.framework.TestCase;
+
+/**
+ * Checks that {@link VirtualBoxControlV43} starts independent machines concurrently and serializes the operations
+ * on a same machine, through {@link VirtualBoxMachineLocks} and its web sessions, against {@link FakeVBoxWebServer},
+ * including across the pooled connections of a host.
+ */
+public class VirtualBoxMachineLocksTest extends TestCase {
+
+  private static final int MACHINES = 4;
+  private static final long BOOT_DELAY = 2000;
+
+  private final VirtualBoxLogger log = new VirtualBoxSystemLog(Logger.getLogger(getClass().getName()), "[test] ");
+
+  private FakeVBoxWebServer server;
+  private VirtualBoxCloud host;
+  private VirtualBoxControlV43 control;
+  private ExecutorService executor;
+
+  @Override
+  protected void setUp() throws Exception {
+    server = new FakeVBoxWebServer("4.3.12");
+    for (int i = 0; i < MACHINES; i++) {
+      server.addMachine("vm" + i, "08:00:27:00:00:0" + i);
+    }
+    server.setTransitionDelay(BOOT_DELAY);
+    server.start();
+    host = new VirtualBoxCloud("fake", server.getUrl(), "user", "password");
+    control = new VirtualBoxControlV43(server.getUrl(), "user", "password");
+    executor = Executors.newFixedThreadPool(MACHINES);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+    control.disconnect();
+    VirtualBoxUtils.disconnectAll();
+    server.stop();
+  }
+
+  public void testIndependentMachinesStartInParallel() throws Exception {
+    List<VirtualBoxMachine> machines = new ArrayList<VirtualBoxMachine>();
+    for (int i = 0; i < MACHINES; i++) {
+      machines.add(new VirtualBoxMachine(host, "vm" + i));
+    }
+    long start = System.currentTimeMillis();
+    for (Future<Long> result : startAll(machines)) {
+      assertEquals(0L, result.get(30, TimeUnit.SECONDS).longValue());
+    }
+    long elapsed = System.currentTimeMillis() - start;
+    // one after another, starting all of them would take MACHINES * BOOT_DELAY
+    assertTrue("took " + elapsed + " ms", elapsed < (MACHINES - 1) * BOOT_DELAY);
+    for (int i = 0; i < MACHINES; i++) {
+      assertEquals("Running", server.getState("vm" + i));
+    }
+    assertEquals(MACHINES, server.getCallCount("IMachine_launchVMProcess"));
+  }
+
+  public void testSameMachineIsSerialized() throws Exception {
+    VirtualBoxMachine machine = new VirtualBoxMachine(host, "vm0");
+    for (Future<Long> result : startAll(Collections.nCopies(MACHINES, machine))) {
+      assertEquals(0L, result.get(30, TimeUnit.SECONDS).longValue());
+    }
+    // the first start holds the machine until it runs, the other ones find it running
+    assertEquals(1, server.getCallCount("IMachine_launchVMProcess"));
+    assertEquals("Running", server.getState("vm0"));
+  }
+
+  public void testSameMachineIsSerializedAcrossConnections() throws Exception {
+    VirtualBoxCloud pooled = new VirtualBoxCloud("fake", server.getUrl(), "user", "password", MACHINES, 60);
+    final VirtualBoxMachine machine = new VirtualBoxMachine(pooled, "vm0");
+    server.setTransitionDelay(0);
+    // opens every connection of the pool
+    for (int i = 0; i < MACHINES; i++) {
+      VirtualBoxUtils.getMacAddress(machine, log);
+    }
+    Lock held = VirtualBoxMachineLocks.forHost(server.getUrl()).lock(machine);
+    List<Future<Long>> results = new ArrayList<Future<Long>>();
+    try {
+      // one start per connection of the pool, picked round-robin
+      for (int i = 0; i < MACHINES; i++) {
+        results.add(executor.submit(new Callable<Long>() {
+          public Long call() throws Exception {
+            return VirtualBoxUtils.startVm(machine, "headless", log);
+          }
+        }));
+      }
+      for (Future<Long> result : results) {
+        try {
+          result.get(200, TimeUnit.MILLISECONDS);
+          fail("started while the machine was locked");
+        } catch (TimeoutException e) {
+          // expected
+        }
+      }
+      assertEquals("PoweredOff", server.getState("vm0"));
+    } finally {
+      held.unlock();
+    }
+    for (Future<Long> result : results) {
+      assertEquals(0L, result.get(30, TimeUnit.SECONDS).longValue());
+    }
+    assertEquals(1, server.getCallCount("IMachine_launchVMProcess"));
+  }
+
+  private List<Future<Long>> startAll(List<VirtualBoxMachine> machines) {
+    List<Future<Long>> results = new ArrayList<Future<Long>>();
+    for (final VirtualBoxMachine machine : machines) {
+      results.add(executor.submit(new Callable<Long>() {
+        public Long call() throws Exception {
+          return control.startVm(machine, "headless", log);
+        }
+      }));
+    }
+    return results;
+  }
+}
@@ -0,0 +1,52 @@
+package hudson.plugins.virtualbox;
+
+import java.net.ServerSocket;
+import java.util.Arrays;
+import java.util.logging.Logger;
+import junit.framework.TestCase;
+
+/**
+ * Samples a host served by {@link FakeVBoxWebServer} next to a hung one, which accepts connections but never answers.
+ */
+public class VirtualBoxMetricsSamplerTest extends TestCase {
+
+  private FakeVBoxWebServer server;
+  private ServerSocket hung;
+
+  @Override
+  protected void setUp() throws Exception {
+    server = new FakeVBoxWebServer("4.3.12");
+    server.addMachine("vm1", "08:00:27:12:34:56");
+    server.start();
+    hung = new ServerSocket(0);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    VirtualBoxUtils.disconnectAll(500);
+    hung.close();
+    server.stop();
+  }
+
+  public void testHungHostDoesNotDelayOtherHosts() throws Exception {
+    VirtualBoxCloud hungHost = new VirtualBoxCloud("hung", "http://127.0.0.1:" + hung.getLocalPort() + "/", "user",
+        "password");
+    VirtualBoxCloud host = new VirtualBoxCloud("fake", server.getUrl(), "user", "password");
+    VirtualBoxMetricsSampler sampler = new VirtualBoxMetricsSampler();
+    // connected beforehand, so that only the hung host can be slow
+    VirtualBoxUtils.getMachines(host, new VirtualBoxSystemLog(Logger.getLogger(getClass().getName()), "[test] "));
+
+    long start = System.currentTimeMillis();
+    sampler.sample(Arrays.asList(hungHost, host), 2000);
+    long elapsed = System.currentTimeMillis() - start;
+
+    assertTrue("took " + elapsed + " ms", elapsed < 5000);
+    assertNotNull("not sampled", host.getMetrics().getLatest());
+    assertNull(hungHost.getMetrics().getLatest());
+
+    // still hanging, the hung host is skipped
+    start = System.currentTimeMillis();
+    sampler.sample(Arrays.asList(hungHost), 2000);
+    assertTrue(System.currentTimeMillis() - start < 1000);
+  }
+}
@@ -0,0 +1,207 @@
+package hudson.plugins.virtualbox;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Logger;
+import junit.framework.TestCase;
+
+/**
+ * Checks how {@link VirtualBoxUtils} logs off from the hosts.
+ */
+public class VirtualBoxUtilsTest extends TestCase {
+
+  private final VirtualBoxLogger log = new VirtualBoxSystemLog(Logger.getLogger(getClass().getName()), "[test] ");
+
+  public void testHungHostIsAbandoned() throws Exception {
+    final CountDownLatch hostsDisconnected = new CountDownLatch(2);
+    VirtualBoxUtils.Connector connector = new VirtualBoxUtils.Connector() {
+      @Override
+      VirtualBoxControl connect(final VirtualBoxCloud host, VirtualBoxLogger log) {
+        return control(new Runnable() {
+          public void run() {
+            if (host.getUrl().contains("hung")) {
+              try {
+                Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+              } catch (InterruptedException e) {
+                return;
+              }
+            }
+            hostsDisconnected.countDown();
+          }
+        });
+      }
+    };
+    for (String name : new String[]{"hung", "other", "fast"}) {
+      VirtualBoxCloud host = new VirtualBoxCloud(name, "http://" + name + ":18083/", "user", "password");
+      VirtualBoxUtils.connectThrough(host, connector);
+      VirtualBoxUtils.getVboxControl(host, log);
+    }
+
+    long start = System.currentTimeMillis();
+    VirtualBoxUtils.disconnectAll(500);
+    long elapsed = System.currentTimeMillis() - start;
+
+    assertTrue("took " + elapsed + " ms", elapsed < 5000);
+    assertTrue(hostsDisconnected.await(0, TimeUnit.MILLISECONDS));
+  }
+
+  public void testResizedPoolIsDisconnectedOnceIdle() throws Exception {
+    final CountDownLatch callStarted = new CountDownLatch(1);
+    final CountDownLatch callReleased = new CountDownLatch(1);
+    final CountDownLatch disconnected = new CountDownLatch(1);
+    VirtualBoxUtils.Connector connector = new VirtualBoxUtils.Connector() {
+      @Override
+      VirtualBoxControl connect(VirtualBoxCloud host, VirtualBoxLogger log) {
+        return control(new Runnable() {
+          public void run() {
+            disconnected.countDown();
+          }
+        }, new Runnable() {
+          public void run() {
+            callStarted.countDown();
+            try {
+              callReleased.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        });
+      }
+    };
+    final VirtualBoxCloud host = new VirtualBoxCloud("resized", "http://resized:18083/", "user", "password", 1, 60);
+    VirtualBoxUtils.connectThrough(host, connector);
+    Thread call = new Thread() {
+      @Override
+      public void run() {
+        VirtualBoxUtils.getMachines(host, log);
+      }
+    };
+    call.start();
+    try {
+      assertTrue(callStarted.await(5, TimeUnit.SECONDS));
+
+      VirtualBoxUtils.getVboxControl(new VirtualBoxCloud("resized", "http://resized:18083/", "user", "password", 2, 60),
+          log);
+      assertFalse("disconnected while in use", disconnected.await(200, TimeUnit.MILLISECONDS));
+    } finally {
+      callReleased.countDown();
+      call.join();
+    }
+    assertTrue(disconnected.await(5, TimeUnit.SECONDS));
+    VirtualBoxUtils.disconnectAll();
+  }
+
+  public void testRetiredControlIsNotUsedOnceDisconnected() throws Exception {
+    final AtomicBoolean disconnected = new AtomicBoolean();
+    final CountDownLatch retiredDisconnected = new CountDownLatch(1);
+    VirtualBoxUtils.Connector connector = new VirtualBoxUtils.Connector() {
+      private boolean first = true;
+
+      @Override
+      synchronized VirtualBoxControl connect(VirtualBoxCloud host, VirtualBoxLogger log) {
+        if (!first) {
+          return control(new Runnable() {
+            public void run() {
+            }
+          });
+        }
+        first = false;
+        return control(new Runnable() {
+          public void run() {
+            disconnected.set(true);
+            retiredDisconnected.countDown();
+          }
+        }, new Runnable() {
+          public void run() {
+            if (disconnected.get()) {
+              throw new IllegalStateException("used once disconnected");
+            }
+          }
+        });
+      }
+    };
+    VirtualBoxCloud host = new VirtualBoxCloud("retired", "http://retired:18083/", "user", "password", 1, 60);
+    VirtualBoxUtils.connectThrough(host, connector);
+    VirtualBoxControl retired = VirtualBoxUtils.getVboxControl(host, log);
+
+    VirtualBoxUtils.getVboxControl(new VirtualBoxCloud("retired", "http://retired:18083/", "user", "password", 2, 60),
+        log);
+    assertTrue(retiredDisconnected.await(5, TimeUnit.SECONDS));
+    retired.getMachines(host, log);
+    VirtualBoxUtils.disconnectAll();
+  }
+
+  public void testLostConnectionIsDisconnected() throws Exception {
+    final AtomicBoolean lost = new AtomicBoolean();
+    final CountDownLatch lostDisconnected = new CountDownLatch(1);
+    VirtualBoxUtils.Connector connector = new VirtualBoxUtils.Connector() {
+      private boolean first = true;
+
+      @Override
+      synchronized VirtualBoxControl connect(VirtualBoxCloud host, VirtualBoxLogger log) {
+        if (!first) {
+          return control(new Runnable() {
+            public void run() {
+            }
+          });
+        }
+        first = false;
+        return (VirtualBoxControl) Proxy.newProxyInstance(VirtualBoxControl.class.getClassLoader(),
+            new Class<?>[]{VirtualBoxControl.class}, new InvocationHandler() {
+              public Object invoke(Object proxy, Method method, Object[] args) {
+                if ("disconnect".equals(method.getName())) {
+                  lostDisconnected.countDown();
+                } else if ("isConnected".equals(method.getName())) {
+                  return !lost.get();
+                } else if (lost.get()) {
+                  throw new IllegalStateException("connection lost");
+                }
+                return null;
+              }
+            });
+      }
+    };
+    VirtualBoxCloud host = new VirtualBoxCloud("lost", "http://lost:18083/", "user", "password", 1, 60);
+    VirtualBoxUtils.connectThrough(host, connector);
+    VirtualBoxControl first = VirtualBoxUtils.getVboxControl(host, log);
+
+    lost.set(true);
+    try {
+      VirtualBoxUtils.getMachines(host, log);
+      fail();
+    } catch (IllegalStateException e) {
+      // expected
+    }
+    assertNotSame(first, VirtualBoxUtils.getVboxControl(host, log));
+    assertTrue(lostDisconnected.await(5, TimeUnit.SECONDS));
+    VirtualBoxUtils.disconnectAll();
+  }
+
+  /**
+   * @return connected control, running specified action on disconnect
+   */
+  private static VirtualBoxControl control(Runnable disconnect) {
+    return control(disconnect, null);
+  }
+
+  /**
+   * @return connected control, running specified actions on disconnect and on every listing of the machines
+   */
+  private static VirtualBoxControl control(final Runnable disconnect, final Runnable getMachines) {
+    return (VirtualBoxControl) Proxy.newProxyInstance(VirtualBoxControl.class.getClassLoader(),
+        new Class<?>[]{VirtualBoxControl.class}, new InvocationHandler() {
+          public Object invoke(Object proxy, Method method, Object[] args) {
+            if ("disconnect".equals(method.getName())) {
+              disconnect.run();
+            } else if ("getMachines".equals(method.getName()) && null != getMachines) {
+              getMachines.run();
+            }
+            return "isConnected".equals(method.getName()) ? Boolean.TRUE : null;
+          }
+        });
+  }
+}
@@ -0,0 +1,55 @@
+package hudson.plugins.virtualbox;
+
+import java.net.ServerSocket;
+import java.util.Arrays;
+import junit.framework.TestCase;
+
+/**
+ * Warms up hosts served by {@link FakeVBoxWebServer}, and an unreachable one.
+ */
+public class VirtualBoxWarmUpTest extends TestCase {
+
+  private FakeVBoxWebServer server;
+
+  @Override
+  protected void setUp() throws Exception {
+    server = new FakeVBoxWebServer("4.3.12");
+    server.addMachine("vm1", "08:00:27:12:34:56");
+    server.start();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    VirtualBoxUtils.disconnectAll();
+    server.stop();
+  }
+
+  public void testWarmUp() throws Exception {
+    VirtualBoxCloud host = new VirtualBoxCloud("fake", server.getUrl(), "user", "password", 3, 60);
+    VirtualBoxCloud unreachable = new VirtualBoxCloud("unreachable", "http://127.0.0.1:" + freePort() + "/", "user",
+        "password", 1, 60);
+
+    VirtualBoxWarmUp.warmUp(Arrays.asList(host, unreachable), 30000);
+
+    assertNotNull(host.getWarmedUpAt());
+    assertNull(host.getWarmUpFailure());
+    assertEquals("4.3.12", host.getVersion());
+    // version probed once for the whole pool
+    assertEquals(1, server.getCallCount("IVirtualBox_getVersion"));
+    assertEquals("vm1", host.getVirtualMachines().get(0).getName());
+    assertEquals(1, server.getCallCount("IVirtualBox_getMachines"));
+
+    assertNotNull(unreachable.getWarmedUpAt());
+    assertNotNull(unreachable.getWarmUpFailure());
+    assertNull(unreachable.getVersion());
+  }
+
+  private static int freePort() throws Exception {
+    ServerSocket socket = new ServerSocket(0);
+    try {
+      return socket.getLocalPort();
+    } finally {
+      socket.close();
+    }
+  }
+}
@@ -0,0 +1,95 @@
+package hudson.plugins.virtualbox;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import junit.framework.TestCase;
+
+/**
+ * Checks that {@link VirtualBoxWebSessionPool} hands out no more web sessions than its cap.
+ */
+public class VirtualBoxWebSessionPoolTest extends TestCase {
+
+  private final AtomicInteger created = new AtomicInteger();
+  private final VirtualBoxWebSessionPool<Integer> pool = new VirtualBoxWebSessionPool<Integer>(2, 4,
+      TimeUnit.MINUTES.toMillis(4)) {
+    @Override
+    protected Integer create() {
+      return created.incrementAndGet();
+    }
+
+    @Override
+    protected void destroy(Integer session) {
+    }
+  };
+
+  private ExecutorService executor;
+
+  @Override
+  protected void setUp() throws Exception {
+    executor = Executors.newSingleThreadExecutor();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    executor.shutdownNow();
+  }
+
+  public void testBorrowWaitsAtCap() throws Exception {
+    Integer first = pool.borrow();
+    pool.borrow();
+    Future<Integer> third = executor.submit(new Callable<Integer>() {
+      public Integer call() {
+        return pool.borrow();
+      }
+    });
+    try {
+      third.get(200, TimeUnit.MILLISECONDS);
+      fail("borrowed beyond the cap");
+    } catch (TimeoutException e) {
+      // expected
+    }
+
+    pool.release(first);
+    assertEquals(first, third.get(5, TimeUnit.SECONDS));
+    assertEquals(2, created.get());
+  }
+
+  public void testDeadIdleSessionIsReplaced() throws Exception {
+    VirtualBoxWebSessionPool<Integer> validating = new VirtualBoxWebSessionPool<Integer>(2, 4,
+        TimeUnit.MINUTES.toMillis(4), 0) {
+      @Override
+      protected Integer create() {
+        return created.incrementAndGet();
+      }
+
+      @Override
+      protected void destroy(Integer session) {
+      }
+
+      @Override
+      protected boolean validate(Integer session) {
+        // the first session expired on the host while idle
+        return 1 != session;
+      }
+    };
+    validating.release(validating.borrow());
+    Thread.sleep(10);
+
+    assertEquals(Integer.valueOf(2), validating.borrow());
+  }
+
+  public void testFailedSessionFreesItsPermit() throws Exception {
+    List<Integer> sessions = pool.borrow(2);
+    pool.invalidate(sessions.get(0));
+    pool.release(sessions.get(1));
+
+    assertEquals(2, pool.borrow(2).size());
+    assertEquals(3, created.get());
+  }
+}